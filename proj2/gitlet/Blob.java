@@ -1,21 +1,76 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
-import static gitlet.MyUtils.getObjectFile;
-import static gitlet.MyUtils.saveObjectFile;
+import static gitlet.MyUtils.*;
 import static gitlet.Utils.*;
 
 /**
  * Represent the file object.
+ * <p>
+ * The content is compressed with Deflate when saved,
+ * and streamed from the object file when restored,
+ * so that it is never held in memory as a whole.
+ * Content that does not compress is stored as is and copied with FileChannel.transferTo.
+ * Files of at least {@code gitlet.blob.chunkThreshold} bytes are split into content-defined Chunk objects,
+ * which are stored once across the repository, and the blob only lists their SHA1 ids,
+ * so that a small change to a large file only stores the chunks around it.
  *
  * @author Exuanbo
  */
-@SuppressWarnings("PrimitiveArrayArgumentToVarargsMethod")
 public class Blob implements Serializable {
 
+    /**
+     * Kept from the Java serialization format so that legacy objects can still be read.
+     */
+    private static final long serialVersionUID = -3940093829084956802L;
+
+    /**
+     * Content is stored as is.
+     */
+    static final byte COMPRESSION_NONE = 0;
+
+    /**
+     * Content is compressed with Deflate.
+     */
+    static final byte COMPRESSION_DEFLATE = 1;
+
+    /**
+     * Content is stored as a list of Chunk objects.
+     */
+    static final byte COMPRESSION_CHUNKED = 2;
+
+    /**
+     * Length of the beginning of the content to try compressing before saving.
+     */
+    private static final int COMPRESSION_SAMPLE_LENGTH = 64 * 1024;
+
+    /**
+     * Content is only compressed if the sample shrinks to less than this ratio.
+     */
+    static final double MIN_COMPRESSION_RATIO = 0.9;
+
+    /**
+     * Files of at least this size are stored in chunks. Chunking is off by default.
+     */
+    private static final long CHUNK_THRESHOLD = Long.getLong("gitlet.blob.chunkThreshold", Long.MAX_VALUE);
+
+    private static final Random TEMP_FILE_RANDOM = new Random();
+
     /**
      * The source file from constructor.
      */
@@ -23,6 +78,7 @@ public class Blob implements Serializable {
 
     /**
      * The content of the source file.
+     * Only held in memory for objects in the legacy formats.
      */
     private final byte[] content;
 
@@ -32,45 +88,313 @@ public class Blob implements Serializable {
     private final String id;
 
     /**
-     * The file of this instance with the path generated from SHA1 id.
+     * The size of the uncompressed content.
+     */
+    private final transient long size;
+
+    /**
+     * The SHA1 ids of the chunks of the content in order, or null if not chunked.
+     */
+    private final transient String[] chunkIds;
+
+    /**
+     * The uncompressed content once read as String, kept while the instance is cached.
      */
-    private final File file;
+    private transient String contentString;
 
     public Blob(File sourceFile) {
+        this(sourceFile, generateId(sourceFile));
+    }
+
+    /**
+     * Create a Blob instance with the already known SHA1 id of the source file.
+     *
+     * @param sourceFile File instance
+     * @param id         SHA1 id
+     */
+    public Blob(File sourceFile, String id) {
         source = sourceFile;
-        String filePath = sourceFile.getPath();
-        content = readContents(sourceFile);
-        id = sha1(filePath, content);
-        file = getObjectFile(id);
+        content = null;
+        this.id = id;
+        size = sourceFile.length();
+        chunkIds = null;
+    }
+
+    /**
+     * Decode a Blob instance, leaving the content in the object file.
+     * How the content is stored is not kept, as packing may store the same object differently,
+     * and a cached instance outlives that in the daemon. It is read again on each open instead.
+     *
+     * @param id     SHA1 id
+     * @param reader ObjectReader instance
+     */
+    private Blob(String id, ObjectReader reader) {
+        this.id = id;
+        source = new File(reader.readString());
+        if (reader.getVersion() < 2) {
+            content = reader.readBytes();
+            size = content.length;
+            chunkIds = null;
+        } else {
+            content = null;
+            byte compressionMethod = reader.readByte();
+            size = reader.readVarint();
+            chunkIds = compressionMethod == COMPRESSION_CHUNKED ? readChunkIds(reader) : null;
+        }
     }
 
     /**
-     * Generate SH1 id.
+     * Generate SH1 id from the file path and the file content,
+     * streaming the content so that the file is never read into memory.
      *
      * @param sourceFile File instance
      * @return SHA1 id
      */
     public static String generateId(File sourceFile) {
-        String filePath = sourceFile.getPath();
-        byte[] fileContent = readContents(sourceFile);
-        return sha1(filePath, fileContent);
+        if (!sourceFile.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        return bytesToHex(sha1Digest(sourceFile.getPath(), sourceFile));
     }
 
     /**
      * Get a Blob instance from the file with the SHA1 id.
+     * Decoded blobs are kept in the ObjectCache, weighed by their content size.
      *
      * @param id SHA1 id
      * @return Blob instance
      */
     public static Blob fromFile(String id) {
-        return readObject(getObjectFile(id), Blob.class);
+        return ObjectCache.get(id, Blob.class, Blob::load, blob -> 128 + blob.getSize());
+    }
+
+    /**
+     * Read a Blob instance from the file with the SHA1 id.
+     * Only the object header is read.
+     *
+     * @param id SHA1 id
+     * @return Blob instance
+     */
+    private static Blob load(String id) {
+        try (InputStream in = openObject(id)) {
+            in.mark(2);
+            boolean isSerialized = isSerialized(in.readNBytes(2));
+            in.reset();
+            if (isSerialized) {
+                return deserialize(in, Blob.class);
+            }
+            return new Blob(id, new ObjectReader(in, ObjectWriter.TYPE_BLOB));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Encode the header of this instance in the binary object format.
+     * The content follows the header until the end of the object.
+     *
+     * @param compressionMethod Compression method of the content
+     * @return Encoded header
+     */
+    private byte[] encodeHeader(byte compressionMethod) {
+        return newHeaderWriter(compressionMethod).toByteArray();
+    }
+
+    private ObjectWriter newHeaderWriter(byte compressionMethod) {
+        ObjectWriter writer = compressionMethod == COMPRESSION_CHUNKED
+            ? new ObjectWriter(ObjectWriter.TYPE_BLOB, ObjectWriter.VERSION_CHUNKED)
+            : new ObjectWriter(ObjectWriter.TYPE_BLOB);
+        writer.writeString(source.getPath());
+        writer.writeByte(compressionMethod);
+        writer.writeVarint(getSize());
+        return writer;
+    }
+
+    /**
+     * Encode this instance in the binary object format.
+     * Only used to migrate objects in the legacy formats.
+     *
+     * @return Encoded object
+     */
+    public byte[] encode() {
+        byte[] header = encodeHeader(COMPRESSION_NONE);
+        byte[] bytes = new byte[header.length + content.length];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        System.arraycopy(content, 0, bytes, header.length, content.length);
+        return bytes;
+    }
+
+    /**
+     * Get the encoded blob with its content stored as is,
+     * so that similar blobs can be delta compressed against each other.
+     *
+     * @param bytes Encoded blob
+     * @return Encoded blob with uncompressed content
+     */
+    public static byte[] decompress(byte[] bytes) {
+        ObjectReader reader = new ObjectReader(bytes, ObjectWriter.TYPE_BLOB);
+        if (reader.getVersion() < 2) {
+            return bytes;
+        }
+        String path = reader.readString();
+        byte compressionMethod = reader.readByte();
+        long contentSize = reader.readVarint();
+        int contentOffset = (int) reader.getPosition();
+        if (compressionMethod != COMPRESSION_DEFLATE) {
+            return bytes;
+        }
+        ObjectWriter writer = new ObjectWriter(ObjectWriter.TYPE_BLOB);
+        writer.writeString(path);
+        writer.writeByte(COMPRESSION_NONE);
+        writer.writeVarint(contentSize);
+        byte[] header = writer.toByteArray();
+        try (InputStream in = new InflaterInputStream(
+            new ByteArrayInputStream(bytes, contentOffset, bytes.length - contentOffset))) {
+            byte[] decompressed = new byte[Math.toIntExact(header.length + contentSize)];
+            System.arraycopy(header, 0, decompressed, 0, header.length);
+            if (in.readNBytes(decompressed, header.length, (int) contentSize) != contentSize) {
+                throw error("Unexpected end of blob: %s", path);
+            }
+            return decompressed;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
     }
 
     /**
-     * Save this Blob instance to file in objects folder.
+     * Save this Blob instance to file in objects folder,
+     * streaming the source file content through the compressor.
+     * Content that does not compress, such as images or archives, is stored as is,
+     * so that it can be copied without passing through the heap when restored.
      */
     public void save() {
-        saveObjectFile(file, this);
+        if (size >= CHUNK_THRESHOLD) {
+            saveChunks();
+            return;
+        }
+        byte compressionMethod = isCompressible() ? COMPRESSION_DEFLATE : COMPRESSION_NONE;
+        Transaction.writeObjectFile(getObjectFile(id), out -> {
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                out.write(ByteBuffer.wrap(encodeHeader(compressionMethod)));
+                if (compressionMethod == COMPRESSION_NONE) {
+                    transferFully(in, 0, size, out);
+                    return;
+                }
+                // Finished without closing, as the channel is still to be forced.
+                Deflater deflater = new Deflater();
+                try {
+                    DeflaterOutputStream deflaterOut = new DeflaterOutputStream(Channels.newOutputStream(out), deflater);
+                    Channels.newInputStream(in).transferTo(deflaterOut);
+                    deflaterOut.finish();
+                } finally {
+                    deflater.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * Save the source file content as chunks, skipping the ones already stored,
+     * and save this Blob instance as the list of their SHA1 ids.
+     */
+    private void saveChunks() {
+        List<String> ids = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            Chunker chunker = new Chunker(in);
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                ids.add(Chunk.save(chunk));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        ObjectWriter writer = newHeaderWriter(COMPRESSION_CHUNKED);
+        writer.writeVarint(ids.size());
+        for (String chunkId : ids) {
+            writer.writeId(chunkId);
+        }
+        saveObjectFile(getObjectFile(id), writer.toByteArray());
+    }
+
+    /**
+     * Tells if the source file content is worth compressing,
+     * judging from how well the beginning of it compresses.
+     *
+     * @return true if should be compressed
+     */
+    private boolean isCompressible() {
+        byte[] sample;
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            sample = in.readNBytes(COMPRESSION_SAMPLE_LENGTH);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (sample.length == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] buffer = new byte[sample.length];
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+            }
+            return deflater.getBytesWritten() < sample.length * MIN_COMPRESSION_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Open a stream of the uncompressed content.
+     *
+     * @return InputStream instance
+     */
+    public InputStream openContent() throws IOException {
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+        if (chunkIds != null) {
+            return new ChunksInputStream(chunkIds);
+        }
+        return openStoredContent().open();
+    }
+
+    /**
+     * Open the object and read its header, leaving the stream at the content.
+     *
+     * @return StoredContent instance
+     */
+    private StoredContent openStoredContent() throws IOException {
+        InputStream in = openObject(id);
+        try {
+            in.mark(2);
+            boolean isSerialized = isSerialized(in.readNBytes(2));
+            in.reset();
+            if (isSerialized) {
+                byte[] legacyContent = deserialize(in, Blob.class).content;
+                in.close();
+                return new StoredContent(null, COMPRESSION_NONE, 0, null, legacyContent);
+            }
+            ObjectReader reader = new ObjectReader(in, ObjectWriter.TYPE_BLOB);
+            reader.readString();
+            byte compressionMethod = reader.readByte();
+            reader.readVarint();
+            String[] storedChunkIds = compressionMethod == COMPRESSION_CHUNKED ? readChunkIds(reader) : null;
+            return new StoredContent(in, compressionMethod, reader.getPosition(), storedChunkIds, null);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static String[] readChunkIds(ObjectReader reader) {
+        String[] ids = new String[reader.readLength()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = reader.readId();
+        }
+        return ids;
     }
 
     /**
@@ -79,14 +403,82 @@ public class Blob implements Serializable {
      * @return Blob content
      */
     public String getContentAsString() {
-        return new String(content, StandardCharsets.UTF_8);
+        if (contentString != null) {
+            return contentString;
+        }
+        if (content != null) {
+            contentString = new String(content, StandardCharsets.UTF_8);
+            return contentString;
+        }
+        try (InputStream in = openContent()) {
+            contentString = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return contentString;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
     }
 
     /**
-     * Write the file content back to the source file.
+     * Write the file content back to the source file,
+     * streaming it from the object file through the decompressor.
+     * The content is written to a temporary file next to the source file first,
+     * which is renamed over it once complete, so that a failed read never destroys the file.
      */
     public void writeContentToSource() {
-        writeContents(source, content);
+        mkdirParent(source);
+        File tempFile = new File(source.getAbsoluteFile().getParentFile(),
+            "." + source.getName() + "." + Long.toHexString(TEMP_FILE_RANDOM.nextLong()) + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writeContent(out);
+            }
+            if (source.exists()) {
+                copyPermissions(source, tempFile);
+            }
+            Transaction.rename(tempFile, source);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the uncompressed content to the channel.
+     * Uncompressed content stored whole is copied from the object file by the kernel.
+     *
+     * @param out Channel to write to
+     */
+    private void writeContent(FileChannel out) throws IOException {
+        if (content == null && chunkIds == null) {
+            StoredContent stored = openStoredContent();
+            if (stored.isWhole()) {
+                stored.in.close();
+                if (transferObject(id, stored.contentOffset, size, out)) {
+                    return;
+                }
+            }
+        }
+        try (InputStream in = openContent()) {
+            in.transferTo(Channels.newOutputStream(out));
+        }
+    }
+
+    /**
+     * Copy the permissions of the file being replaced, where the file system has them.
+     *
+     * @param from File to copy from
+     * @param to   File to copy to
+     */
+    private static void copyPermissions(File from, File to) throws IOException {
+        try {
+            Files.setPosixFilePermissions(to.toPath(), Files.getPosixFilePermissions(from.toPath()));
+        } catch (UnsupportedOperationException ignored) {
+            // Not a POSIX file system.
+        }
     }
 
     /**
@@ -98,12 +490,163 @@ public class Blob implements Serializable {
         return id;
     }
 
+    /**
+     * Get the size of the uncompressed content.
+     *
+     * @return Size in bytes
+     */
+    public long getSize() {
+        return content != null ? content.length : size;
+    }
+
+    /**
+     * Get the SHA1 ids of the chunks of the content.
+     *
+     * @return List of SHA1 ids in order, empty if not chunked
+     */
+    public List<String> getChunkIds() {
+        return chunkIds == null ? List.of() : Arrays.asList(chunkIds);
+    }
+
     /**
      * Get the Blob file.
      *
      * @return File instance
      */
     public File getFile() {
-        return file;
+        return getObjectFile(id);
+    }
+
+    /**
+     * The object opened at its content, with how the content is stored.
+     */
+    private static class StoredContent {
+
+        /**
+         * Stream positioned at the content, or null for an object in the legacy formats.
+         */
+        private final InputStream in;
+
+        private final byte compression;
+
+        /**
+         * The offset of the content in the object.
+         */
+        private final long contentOffset;
+
+        /**
+         * The SHA1 ids of the chunks, or null if not chunked.
+         */
+        private final String[] chunkIds;
+
+        /**
+         * The content of an object in the legacy formats, or null.
+         */
+        private final byte[] content;
+
+        StoredContent(InputStream in, byte compression, long contentOffset, String[] chunkIds, byte[] content) {
+            this.in = in;
+            this.compression = compression;
+            this.contentOffset = contentOffset;
+            this.chunkIds = chunkIds;
+            this.content = content;
+        }
+
+        /**
+         * Tells if the content is stored as is in the object itself.
+         *
+         * @return true if it can be copied from the object
+         */
+        boolean isWhole() {
+            return in != null && compression == COMPRESSION_NONE && chunkIds == null;
+        }
+
+        /**
+         * Get a stream of the uncompressed content.
+         *
+         * @return InputStream instance
+         */
+        InputStream open() throws IOException {
+            if (content != null) {
+                return new ByteArrayInputStream(content);
+            }
+            if (chunkIds != null) {
+                in.close();
+                return new ChunksInputStream(chunkIds);
+            }
+            if (compression == COMPRESSION_DEFLATE) {
+                return new InflaterInputStream(in);
+            }
+            return in;
+        }
+    }
+
+    /**
+     * Stream of the content of the chunks in order.
+     * Each chunk is only opened when the previous one has been read,
+     * so that a reader stopping early does not open the rest.
+     */
+    private static class ChunksInputStream extends InputStream {
+
+        private final String[] chunkIds;
+
+        private int nextChunk = 0;
+
+        private InputStream current;
+
+        ChunksInputStream(String[] chunkIds) {
+            this.chunkIds = chunkIds;
+        }
+
+        /**
+         * Get the stream of the chunk being read, opening the next one if needed.
+         *
+         * @return InputStream instance, or null after the last chunk
+         */
+        private InputStream current() {
+            if (current == null && nextChunk < chunkIds.length) {
+                current = Chunk.open(chunkIds[nextChunk++]);
+            }
+            return current;
+        }
+
+        @Override
+        public int read() throws IOException {
+            InputStream in;
+            while ((in = current()) != null) {
+                int b = in.read();
+                if (b >= 0) {
+                    return b;
+                }
+                in.close();
+                current = null;
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            InputStream in;
+            while ((in = current()) != null) {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                in.close();
+                current = null;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
     }
 }
@@ -0,0 +1,260 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static gitlet.MyUtils.*;
+import static gitlet.Utils.error;
+import static gitlet.Utils.join;
+
+/**
+ * Apply changes to the working directory as a whole, writing the blobs on a pool of worker threads.
+ * <p>
+ * The number of workers is set by the system property {@code gitlet.checkout.threads}
+ * (defaults to the number of processors). Files to be overwritten or deleted are first moved
+ * into a backup directory, so that if any blob fails to be written, the written files are deleted
+ * and the backups are moved back, leaving the working directory as it was.
+ * Backups are kept at the same relative paths as their files, so that those left by a checkout
+ * that was killed are moved back by the next command.
+ *
+ * @author Exuanbo
+ */
+public class Checkout {
+
+    /**
+     * Number of worker threads.
+     */
+    private static final int THREADS = Math.max(1,
+        Integer.getInteger("gitlet.checkout.threads", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The directory of the files replaced by the checkout in progress.
+     */
+    private static final File BACKUP_DIR = join(Repository.GITLET_DIR, "checkout-backup");
+
+    /**
+     * Map with the replaced file as key and its backup as value, in the order of replacement.
+     */
+    private final Map<File, File> backups = new LinkedHashMap<>();
+
+    /**
+     * Files created by the checkout, including those only partially written.
+     */
+    private final Set<File> writtenFiles = Collections.synchronizedSet(new HashSet<>());
+
+    private Checkout() {
+    }
+
+    /**
+     * Apply the changes to the working directory, or leave it unchanged if any of them fails.
+     *
+     * @param changes Map with file path as key and Blob SHA1 id as value, or null to delete the file
+     */
+    public static void apply(Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Checkout checkout = new Checkout();
+        try {
+            checkout.run(changes);
+        } catch (RuntimeException e) {
+            checkout.rollback();
+            throw e;
+        }
+        clearBackups();
+    }
+
+    /**
+     * Move back the files replaced by a checkout that was killed, over the files it wrote in their place.
+     * A shared index lock is upgraded first.
+     */
+    public static void recover() {
+        if (!BACKUP_DIR.exists()) {
+            return;
+        }
+        if (LockManager.upgradeIndexLock() && !BACKUP_DIR.exists()) {
+            return;
+        }
+        List<Path> backupFiles;
+        try (Stream<Path> paths = Files.walk(BACKUP_DIR.toPath())) {
+            backupFiles = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        for (Path backupFile : backupFiles) {
+            File file = Repository.CWD.toPath().resolve(BACKUP_DIR.toPath().relativize(backupFile)).toFile();
+            if (file.isDirectory()) {
+                throw error("Cannot restore %s from %s", file.getPath(), backupFile);
+            }
+            mkdirParent(file);
+            move(backupFile.toFile(), file);
+        }
+        debug("checkout: %d file(s) restored from a killed checkout", backupFiles.size());
+        clearBackups();
+    }
+
+    /**
+     * Move away the files to be replaced, and then write the blobs.
+     * Files are moved before any blob is written, since a path may change from a file to a directory.
+     *
+     * @param changes Map with file path as key and Blob SHA1 id as value, or null to delete the file
+     */
+    private void run(Map<String, String> changes) {
+        if (BACKUP_DIR.exists()) {
+            // Left by a checkout that failed to clear it, after its files were restored by recover.
+            clearBackups();
+        }
+        mkdir(BACKUP_DIR);
+        List<Map.Entry<File, String>> writes = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            File file = new File(change.getKey());
+            if (file.exists()) {
+                backup(file);
+            }
+            if (change.getValue() != null) {
+                writes.add(Map.entry(file, change.getValue()));
+            }
+        }
+        write(writes);
+        debug("checkout: %d file(s) written, %d file(s) deleted",
+            writes.size(), changes.size() - writes.size());
+    }
+
+    /**
+     * Write the blobs to the files, on the worker threads if there are more than one.
+     *
+     * @param writes List of files and Blob SHA1 ids
+     */
+    private void write(List<Map.Entry<File, String>> writes) {
+        if (THREADS == 1 || writes.size() < 2) {
+            for (Map.Entry<File, String> write : writes) {
+                write(write.getKey(), write.getValue());
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(THREADS, writes.size()));
+        List<Future<?>> futures = new ArrayList<>(writes.size());
+        try {
+            for (Map.Entry<File, String> write : writes) {
+                futures.add(pool.submit(() -> write(write.getKey(), write.getValue())));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            // Wait for the running writes, so that no file is written after the rollback.
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Write the blob to the file.
+     *
+     * @param file   File instance
+     * @param blobId Blob SHA1 id
+     */
+    private void write(File file, String blobId) {
+        writtenFiles.add(file);
+        Blob.fromFile(blobId).writeContentToSource();
+    }
+
+    /**
+     * Move the file to the same relative path in the backup directory, and delete its parent directories left empty.
+     *
+     * @param file File instance
+     */
+    private void backup(File file) {
+        File backupFile = BACKUP_DIR.toPath().resolve(Repository.CWD.toPath().relativize(file.toPath())).toFile();
+        mkdirParent(backupFile);
+        move(file, backupFile);
+        backups.put(file, backupFile);
+        rmEmptyParentDirs(file);
+    }
+
+    /**
+     * Delete the written files and move the backups back.
+     */
+    private void rollback() {
+        for (File file : writtenFiles) {
+            if (file.exists()) {
+                rm(file);
+                rmEmptyParentDirs(file);
+            }
+        }
+        for (Map.Entry<File, File> backup : backups.entrySet()) {
+            mkdirParent(backup.getKey());
+            move(backup.getValue(), backup.getKey());
+        }
+        clearBackups();
+    }
+
+    /**
+     * Delete the backup directory and everything in it.
+     */
+    private static void clearBackups() {
+        try (Stream<Path> paths = Files.walk(BACKUP_DIR.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> rm(path.toFile()));
+        } catch (NoSuchFileException ignored) {
+            // Nothing to delete.
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the parent directories of the file up to CWD that are left empty.
+     *
+     * @param file File instance
+     */
+    private static void rmEmptyParentDirs(File file) {
+        File dir = file.getParentFile();
+        while (dir != null && !dir.equals(Repository.CWD)) {
+            String[] remaining = dir.list();
+            if (remaining == null || remaining.length > 0) {
+                break;
+            }
+            rm(dir);
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * Rename the file.
+     *
+     * @param source File instance
+     * @param target File instance
+     */
+    private static void move(File source, File target) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
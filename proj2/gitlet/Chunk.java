@@ -0,0 +1,96 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.MyUtils.*;
+import static gitlet.Utils.sha1;
+
+/**
+ * A piece of the content of a chunked Blob, stored once for all blobs that contain it.
+ * <p>
+ * The SHA1 id is generated from the content alone, prefixed with the type and the length,
+ * so that it never collides with the id of a Blob, which starts with the file path.
+ *
+ * <pre>
+ * [header][compression: 1 byte][size: varint][content...]
+ * </pre>
+ *
+ * @author Exuanbo
+ */
+public class Chunk {
+
+    private Chunk() {
+    }
+
+    /**
+     * Generate the SHA1 id of the chunk content.
+     *
+     * @param content Chunk content
+     * @return SHA1 id
+     */
+    public static String generateId(byte[] content) {
+        return sha1("chunk " + content.length + "\0", content);
+    }
+
+    /**
+     * Save the chunk content to file in objects folder unless it is already stored,
+     * compressed with Deflate if it shrinks enough.
+     *
+     * @param content Chunk content
+     * @return SHA1 id
+     */
+    public static String save(byte[] content) {
+        String id = generateId(content);
+        if (objectExists(id)) {
+            return id;
+        }
+        byte[] compressed = deflate(content);
+        boolean isCompressed = compressed.length < content.length * Blob.MIN_COMPRESSION_RATIO;
+        ObjectWriter writer = new ObjectWriter(ObjectWriter.TYPE_CHUNK, ObjectWriter.VERSION_CHUNKED);
+        writer.writeByte(isCompressed ? Blob.COMPRESSION_DEFLATE : Blob.COMPRESSION_NONE);
+        writer.writeVarint(content.length);
+        byte[] header = writer.toByteArray();
+        byte[] body = isCompressed ? compressed : content;
+        byte[] bytes = new byte[header.length + body.length];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        System.arraycopy(body, 0, bytes, header.length, body.length);
+        saveObjectFile(getObjectFile(id), bytes);
+        return id;
+    }
+
+    /**
+     * Open a stream of the uncompressed chunk content.
+     *
+     * @param id SHA1 id
+     * @return InputStream instance
+     */
+    public static InputStream open(String id) {
+        InputStream in = openObject(id);
+        ObjectReader reader = new ObjectReader(in, ObjectWriter.TYPE_CHUNK);
+        byte compression = reader.readByte();
+        reader.readVarint();
+        if (compression == Blob.COMPRESSION_DEFLATE) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Split a stream into content-defined chunks with the FastCDC algorithm.
+ * <p>
+ * A gear hash rolls over the bytes after the minimum chunk size, and a chunk ends where
+ * the top bits of the hash are all zero. The mask has more bits before the average size
+ * and fewer after it, so that chunk sizes gather around the average.
+ * As the hash only depends on the last 64 bytes, an insertion or deletion only moves
+ * the boundaries around it, and the chunks after them are the same as before.
+ *
+ * @author Exuanbo
+ */
+public class Chunker {
+
+    /**
+     * Chunks are never cut before this size, except the last one.
+     */
+    static final int MIN_SIZE = 16 * 1024;
+
+    /**
+     * Size from which boundaries become more likely.
+     */
+    static final int AVG_SIZE = 64 * 1024;
+
+    /**
+     * Chunks are always cut at this size.
+     */
+    static final int MAX_SIZE = 256 * 1024;
+
+    /**
+     * Mask before the average size, two bits harder to match than the average.
+     */
+    private static final long MASK_SMALL = -1L << (64 - 18);
+
+    /**
+     * Mask after the average size, two bits easier to match than the average.
+     */
+    private static final long MASK_LARGE = -1L << (64 - 14);
+
+    /**
+     * Random values of each byte for the gear hash.
+     * Generated from a fixed seed, as changing them would move all chunk boundaries
+     * and stop new chunks from matching the ones already stored.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x6769746c6574L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream in;
+
+    private final byte[] buffer = new byte[4 * MAX_SIZE];
+
+    private int start = 0;
+
+    private int end = 0;
+
+    private boolean isEndOfStream = false;
+
+    /**
+     * Create a chunker reading from the stream.
+     *
+     * @param in InputStream instance
+     */
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Get the next chunk.
+     *
+     * @return Chunk content, or null at the end of the stream
+     */
+    public byte[] next() throws IOException {
+        if (end - start < MAX_SIZE && !isEndOfStream) {
+            fill();
+        }
+        if (start == end) {
+            return null;
+        }
+        int length = findBoundary(buffer, start, end - start);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Move the remaining bytes to the beginning of the buffer and read until it is full.
+     */
+    private void fill() throws IOException {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                isEndOfStream = true;
+                return;
+            }
+            end += n;
+        }
+    }
+
+    /**
+     * Find the length of the chunk at the beginning of the bytes.
+     *
+     * @param bytes  Byte array
+     * @param offset Start of the chunk
+     * @param length Number of bytes available
+     * @return Length of the chunk
+     */
+    static int findBoundary(byte[] bytes, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int n = Math.min(length, MAX_SIZE);
+        int normal = Math.min(n, AVG_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[bytes[offset + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < n; i++) {
+            hash = (hash << 1) + GEAR[bytes[offset + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+}
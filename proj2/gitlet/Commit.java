@@ -2,13 +2,11 @@ package gitlet;
 
 import java.io.File;
 import java.io.Serializable;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 
-import static gitlet.MyUtils.getObjectFile;
-import static gitlet.MyUtils.saveObjectFile;
-import static gitlet.Utils.readObject;
+import static gitlet.MyUtils.*;
 import static gitlet.Utils.sha1;
 
 /**
@@ -18,6 +16,18 @@ import static gitlet.Utils.sha1;
  */
 public class Commit implements Serializable {
 
+    /**
+     * Kept from the Java serialization format so that legacy objects can still be read.
+     */
+    private static final long serialVersionUID = 6204686264601914929L;
+
+    /**
+     * Formatter of the timestamp, bound to the system time zone when the class is loaded.
+     * Thread-safe, unlike SimpleDateFormat.
+     */
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER =
+        DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+
     /**
      * The created date.
      */
@@ -35,8 +45,14 @@ public class Commit implements Serializable {
 
     /**
      * The tracked files Map with file path as key and SHA1 id as value.
+     * Only stored in commits of the legacy formats, and empty in the initial commit.
+     */
+    private Map<String, String> tracked;
+
+    /**
+     * The SHA1 id of the root tree, or null for commits of the legacy formats.
      */
-    private final Map<String, String> tracked;
+    private final String tree;
 
     /**
      * The SHA1 id.
@@ -44,17 +60,16 @@ public class Commit implements Serializable {
     private final String id;
 
     /**
-     * The file of this instance with the path generated from SHA1 id.
+     * The formatted timestamp, computed on first access.
      */
-    private final File file;
+    private transient String timestamp;
 
-    public Commit(String message, List<String> parents, Map<String, String> trackedFilesMap) {
+    public Commit(String message, List<String> parents, String treeId) {
         date = new Date();
         this.message = message;
         this.parents = parents;
-        this.tracked = trackedFilesMap;
+        tree = treeId;
         id = generateId();
-        file = getObjectFile(id);
     }
 
     /**
@@ -65,34 +80,121 @@ public class Commit implements Serializable {
         message = "initial commit";
         parents = new ArrayList<>();
         tracked = new HashMap<>();
+        tree = Tree.update(null, Repository.CWD, tracked);
         id = generateId();
-        file = getObjectFile(id);
+    }
+
+    /**
+     * Decode a Commit instance.
+     *
+     * @param id     SHA1 id
+     * @param reader ObjectReader instance
+     */
+    private Commit(String id, ObjectReader reader) {
+        this.id = id;
+        date = new Date(reader.readSignedVarint());
+        message = reader.readString();
+        int parentsCount = reader.readLength();
+        parents = new ArrayList<>(parentsCount);
+        for (int i = 0; i < parentsCount; i++) {
+            parents.add(reader.readId());
+        }
+        if (reader.getVersion() >= 3) {
+            tree = reader.readId();
+            return;
+        }
+        tree = null;
+        int trackedCount = reader.readLength();
+        tracked = new HashMap<>();
+        for (int i = 0; i < trackedCount; i++) {
+            String filePath = reader.readString();
+            tracked.put(filePath, reader.readId());
+        }
     }
 
     /**
      * Get a Commit instance from the file with the SHA1 id.
+     * Decoded commits are kept in the ObjectCache.
      *
      * @param id SHA1 id
      * @return Commit instance
      */
     public static Commit fromFile(String id) {
-        return readObject(getObjectFile(id), Commit.class);
+        return ObjectCache.get(id, Commit.class, Commit::load, Commit::getWeight);
+    }
+
+    /**
+     * Read a Commit instance from the file with the SHA1 id.
+     * Objects in the legacy Java serialization format are still supported.
+     *
+     * @param id SHA1 id
+     * @return Commit instance
+     */
+    private static Commit load(String id) {
+        byte[] bytes = readObjectBytes(id);
+        if (isSerialized(bytes)) {
+            return deserialize(bytes, Commit.class);
+        }
+        return new Commit(id, new ObjectReader(bytes, ObjectWriter.TYPE_COMMIT));
     }
 
     /**
-     * Generate a SHA1 id from timestamp, message, parents Array and tracked files Map.
+     * Get the approximate size of this instance in memory.
+     *
+     * @return Size in bytes
+     */
+    private long getWeight() {
+        long weight = 256 + message.length() * 2L;
+        if (tracked != null) {
+            for (String filePath : tracked.keySet()) {
+                weight += 160 + filePath.length() * 2L;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Encode this instance in the binary object format.
+     * Commits of the legacy formats are encoded in version 2 with their tracked files,
+     * since a root tree would not match their SHA1 ids.
+     *
+     * @return Encoded object
+     */
+    public byte[] encode() {
+        byte version = tree != null ? ObjectWriter.VERSION : 2;
+        ObjectWriter writer = new ObjectWriter(ObjectWriter.TYPE_COMMIT, version);
+        writer.writeSignedVarint(date.getTime());
+        writer.writeString(message);
+        writer.writeVarint(parents.size());
+        for (String parent : parents) {
+            writer.writeId(parent);
+        }
+        if (tree != null) {
+            writer.writeId(tree);
+            return writer.toByteArray();
+        }
+        writer.writeVarint(tracked.size());
+        for (Map.Entry<String, String> entry : tracked.entrySet()) {
+            writer.writeString(entry.getKey());
+            writer.writeId(entry.getValue());
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Generate a SHA1 id from timestamp, message, parents Array and the root tree id.
      *
      * @return SHA1 id
      */
     private String generateId() {
-        return sha1(getTimestamp(), message, parents.toString(), tracked.toString());
+        return sha1(getTimestamp(), message, parents.toString(), tree);
     }
 
     /**
      * Save this Commit instance to file in objects folder.
      */
     public void save() {
-        saveObjectFile(file, this);
+        saveObjectFile(getObjectFile(id), encode());
     }
 
     /**
@@ -111,8 +213,10 @@ public class Commit implements Serializable {
      */
     public String getTimestamp() {
         // Thu Jan 1 00:00:00 1970 +0000
-        DateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
-        return dateFormat.format(date);
+        if (timestamp == null) {
+            timestamp = TIMESTAMP_FORMATTER.format(date.toInstant());
+        }
+        return timestamp;
     }
 
     /**
@@ -135,11 +239,38 @@ public class Commit implements Serializable {
 
     /**
      * Get the tracked files Map with file path as key and SHA1 id as value.
+     * The Map is flattened from the tree on each call rather than kept, since the instance
+     * is weighed when it is put in the ObjectCache, and is read-only since it may be shared through it.
      *
      * @return Map with file path as key and SHA1 id as value
      */
     public Map<String, String> getTracked() {
-        return tracked;
+        if (tracked != null) {
+            return Collections.unmodifiableMap(tracked);
+        }
+        return Collections.unmodifiableMap(Tree.flatten(tree, Repository.CWD));
+    }
+
+    /**
+     * Get the Blob SHA1 id of the tracked file, reading only the trees of the directories on its path.
+     *
+     * @param filePath Path of the file
+     * @return SHA1 id, or null if not tracked
+     */
+    public String getTrackedBlobId(String filePath) {
+        if (tracked != null) {
+            return tracked.get(filePath);
+        }
+        return Tree.find(tree, Repository.CWD, filePath);
+    }
+
+    /**
+     * Get the SHA1 id of the root tree.
+     *
+     * @return SHA1 id, or null for commits of the legacy formats
+     */
+    public String getTree() {
+        return tree;
     }
 
     /**
@@ -150,7 +281,7 @@ public class Commit implements Serializable {
      */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean restoreTracked(String filePath) {
-        String blobId = tracked.get(filePath);
+        String blobId = getTrackedBlobId(filePath);
         if (blobId == null) {
             return false;
         }
@@ -162,7 +293,7 @@ public class Commit implements Serializable {
      * Restore all tracked files, overwriting the existing ones.
      */
     public void restoreAllTracked() {
-        for (String blobId : tracked.values()) {
+        for (String blobId : getTracked().values()) {
             Blob.fromFile(blobId).writeContentToSource();
         }
     }
@@ -0,0 +1,576 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.MyUtils.bytesToHex;
+import static gitlet.MyUtils.exit;
+import static gitlet.MyUtils.hexToBytes;
+import static gitlet.Utils.error;
+import static gitlet.Utils.join;
+
+/**
+ * Represent the commit-graph file, which stores the ancestry of all commits
+ * so that history can be walked without reading the commit objects.
+ * <p>
+ * The file is a header, the positions of the first rows in the order of their SHA1 id,
+ * and fixed-width rows of
+ * {@code [SHA1: 20 bytes][first parent: 4 bytes][second parent: 4 bytes][date: 8 bytes][generation: 4 bytes]},
+ * where parents are row positions (-1 if none) and always precede their children.
+ * The generation number is 1 for root commits and 1 + the maximum generation of the parents otherwise,
+ * so a commit can never be an ancestor of a commit with a lower or equal generation.
+ * <p>
+ * Commits are looked up by a binary search over the sorted positions, and the rows of later commits
+ * are appended in place and scanned, until there are enough of them for the file to be written again
+ * with every row sorted. Appended rows are forced to disk before the count in the header covers them,
+ * so an interrupted append leaves the graph as it was. Row positions never change once written.
+ *
+ * @author Exuanbo
+ */
+public class CommitGraph {
+
+    /**
+     * The commit-graph file.
+     */
+    public static final File COMMIT_GRAPH = join(Repository.GITLET_DIR, "commit-graph");
+
+    /**
+     * "CGPH" in ASCII.
+     */
+    private static final int SIGNATURE = 0x43475048;
+
+    /**
+     * Format version. Files of older versions are rebuilt.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * Signature, version, number of rows and number of sorted rows.
+     */
+    private static final int HEADER_LENGTH = 16;
+
+    /**
+     * Length of the raw SHA1 id.
+     */
+    private static final int ID_LENGTH = 20;
+
+    /**
+     * Raw SHA1 id, two parents, date and generation.
+     */
+    private static final int ROW_LENGTH = ID_LENGTH + 4 + 4 + 8 + 4;
+
+    /**
+     * The file is written again with every row sorted once more than this many rows are appended.
+     */
+    private static final int MAX_APPENDED_ROWS = 1024;
+
+    /**
+     * Row position of a missing parent.
+     */
+    public static final int NONE = -1;
+
+    /**
+     * The loaded graph. Reloaded if the file has changed since.
+     */
+    private static CommitGraph loaded;
+
+    /**
+     * The memory-mapped file.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Number of rows.
+     */
+    private int size;
+
+    /**
+     * Number of the first rows whose positions are sorted by SHA1 id.
+     */
+    private int sortedCount;
+
+    /**
+     * Length of the file when loaded or last written.
+     */
+    private long fileLength;
+
+    /**
+     * Last modified time of the file when loaded or last written.
+     */
+    private long fileLastModified;
+
+    private CommitGraph() {
+        map();
+    }
+
+    /**
+     * Get the commit graph, building it from the commit objects if it does not exist yet.
+     * Like adding a missing commit, building it upgrades a shared index lock first.
+     *
+     * @return CommitGraph instance
+     */
+    public static synchronized CommitGraph get() {
+        if (loaded != null && loaded.isUpToDate()) {
+            return loaded;
+        }
+        if (!isValidFile()) {
+            LockManager.upgradeIndexLock();
+            if (!isValidFile()) {
+                build();
+            }
+        }
+        loaded = new CommitGraph();
+        return loaded;
+    }
+
+    /**
+     * Write the graph of all commits reachable from the branch heads, replacing the file.
+     */
+    public static synchronized void build() {
+        List<Commit> branchHeadCommits = new ArrayList<>();
+        for (String branchHeadCommitId : Repository.getBranchHeadCommitIds()) {
+            branchHeadCommits.add(Commit.fromFile(branchHeadCommitId));
+        }
+        List<Commit> commits = getMissingCommits(null, branchHeadCommits);
+        write(encodeRows(null, commits), commits.size());
+        loaded = null;
+    }
+
+    /**
+     * Add the commit to the graph. Its parents are added first if missing.
+     *
+     * @param commit Commit instance
+     * @return Row position
+     */
+    public int add(Commit commit) {
+        byte[] id = hexToBytes(commit.getId());
+        int position = positionOf(id);
+        if (position != NONE) {
+            return position;
+        }
+        if (LockManager.upgradeIndexLock()) {
+            refresh();
+            position = positionOf(id);
+            if (position != NONE) {
+                return position;
+            }
+        }
+        append(getMissingCommits(this, List.of(commit)));
+        return positionOf(id);
+    }
+
+    /**
+     * Get the row position of the commit, adding it to the graph if missing.
+     *
+     * @param id Commit SHA1 id
+     * @return Row position
+     */
+    public int indexOf(String id) {
+        int position = positionOf(hexToBytes(id));
+        if (position != NONE) {
+            return position;
+        }
+        return add(Commit.fromFile(id));
+    }
+
+    /**
+     * Tells if the commit is in the graph.
+     *
+     * @param id Commit SHA1 id
+     * @return true if in the graph
+     */
+    public boolean contains(String id) {
+        if (id.length() != ID_LENGTH * 2) {
+            return false;
+        }
+        try {
+            return positionOf(hexToBytes(id)) != NONE;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the commits whose SHA1 id starts with the prefix,
+     * by a binary search over the sorted rows and a scan of the appended ones.
+     *
+     * @param prefix Abbreviated SHA1 id
+     * @return List of commit SHA1 ids in sorted order
+     */
+    public List<String> findByPrefix(String prefix) {
+        byte[] key = hexToBytes(prefix.substring(0, prefix.length() - prefix.length() % 2));
+        List<String> ids = new ArrayList<>();
+        for (int i = lowerBound(key); i < sortedCount && compareId(sortedPositionAt(i), key) == 0; i++) {
+            String id = getId(sortedPositionAt(i));
+            if (id.startsWith(prefix)) {
+                ids.add(id);
+            }
+        }
+        for (int i = sortedCount; i < size; i++) {
+            if (compareId(i, key) == 0 && getId(i).startsWith(prefix)) {
+                ids.add(getId(i));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Get the row position of the commit.
+     *
+     * @param id Raw SHA1 id
+     * @return Row position, or NONE if not in the graph
+     */
+    private int positionOf(byte[] id) {
+        int i = lowerBound(id);
+        if (i < sortedCount && compareId(sortedPositionAt(i), id) == 0) {
+            return sortedPositionAt(i);
+        }
+        for (i = sortedCount; i < size; i++) {
+            if (compareId(i, id) == 0) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Find the first sorted row whose SHA1 id does not start with bytes less than the key.
+     *
+     * @param key Raw SHA1 id or its first bytes
+     * @return Index into the sorted positions
+     */
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = sortedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareId(sortedPositionAt(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compare the first bytes of the SHA1 id of the commit with the key, as unsigned bytes.
+     *
+     * @param i   Row position
+     * @param key Raw SHA1 id or its first bytes
+     * @return Negative, zero or positive as the id is less than, starts with or is greater than the key
+     */
+    private int compareId(int i, byte[] key) {
+        int offset = rowOffset(i);
+        for (int k = 0; k < key.length; k++) {
+            int result = Byte.compareUnsigned(buffer.get(offset + k), key[k]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private int sortedPositionAt(int i) {
+        return buffer.getInt(HEADER_LENGTH + i * 4);
+    }
+
+    /**
+     * Get the commits reachable from the given ones that are not in the graph, with parents before children.
+     * Iterative so that long histories missing from the graph do not overflow the stack.
+     *
+     * @param graph   CommitGraph instance, or null for an empty graph
+     * @param commits Commits to start from
+     * @return List of Commit instances
+     */
+    private static List<Commit> getMissingCommits(CommitGraph graph, List<Commit> commits) {
+        Map<String, Commit> missingCommits = new LinkedHashMap<>();
+        Deque<Commit> stack = new ArrayDeque<>(commits);
+        while (!stack.isEmpty()) {
+            Commit commit = stack.peek();
+            if (isKnown(graph, missingCommits, commit.getId())) {
+                stack.pop();
+                continue;
+            }
+            boolean hasMissingParent = false;
+            for (String parentId : commit.getParents()) {
+                if (!isKnown(graph, missingCommits, parentId)) {
+                    stack.push(Commit.fromFile(parentId));
+                    hasMissingParent = true;
+                }
+            }
+            if (!hasMissingParent) {
+                stack.pop();
+                missingCommits.put(commit.getId(), commit);
+            }
+        }
+        return new ArrayList<>(missingCommits.values());
+    }
+
+    private static boolean isKnown(CommitGraph graph, Map<String, Commit> missingCommits, String id) {
+        return missingCommits.containsKey(id) || graph != null && graph.positionOf(hexToBytes(id)) != NONE;
+    }
+
+    /**
+     * Encode the rows of the commits, whose parents are either in the graph or earlier in the list.
+     *
+     * @param graph   CommitGraph instance the rows are appended to, or null for an empty graph
+     * @param commits List of Commit instances
+     * @return Buffer of the rows
+     */
+    private static ByteBuffer encodeRows(CommitGraph graph, List<Commit> commits) {
+        int firstPosition = graph == null ? 0 : graph.size;
+        Map<String, Integer> newPositions = new HashMap<>();
+        int[] generations = new int[commits.size()];
+        ByteBuffer rows = ByteBuffer.allocate(commits.size() * ROW_LENGTH);
+        for (int i = 0; i < commits.size(); i++) {
+            Commit commit = commits.get(i);
+            List<String> parentIds = commit.getParents();
+            int[] parents = {NONE, NONE};
+            int generation = 1;
+            for (int j = 0; j < parentIds.size() && j < 2; j++) {
+                Integer newPosition = newPositions.get(parentIds.get(j));
+                if (newPosition != null) {
+                    parents[j] = newPosition;
+                    generation = Math.max(generation, 1 + generations[newPosition - firstPosition]);
+                } else {
+                    parents[j] = graph.positionOf(hexToBytes(parentIds.get(j)));
+                    generation = Math.max(generation, 1 + graph.getGeneration(parents[j]));
+                }
+            }
+            rows.put(hexToBytes(commit.getId()));
+            rows.putInt(parents[0]);
+            rows.putInt(parents[1]);
+            rows.putLong(commit.getDate().getTime());
+            rows.putInt(generation);
+            newPositions.put(commit.getId(), firstPosition + i);
+            generations[i] = generation;
+        }
+        rows.flip();
+        return rows;
+    }
+
+    /**
+     * Append the rows of the commits, forcing them to disk before the count in the header is updated.
+     * Rows past the count are left over from an interrupted append and get overwritten.
+     * The file is written again instead once there are too many appended rows.
+     *
+     * @param commits List of Commit instances, with parents before children
+     */
+    private void append(List<Commit> commits) {
+        if (commits.isEmpty()) {
+            return;
+        }
+        ByteBuffer rows = encodeRows(this, commits);
+        int newSize = size + commits.size();
+        if (newSize - sortedCount > MAX_APPENDED_ROWS) {
+            ByteBuffer allRows = ByteBuffer.allocate(newSize * ROW_LENGTH);
+            allRows.put(buffer.slice().position(rowOffset(0)).limit(rowOffset(size)));
+            allRows.put(rows);
+            allRows.flip();
+            write(allRows, newSize);
+        } else {
+            ByteBuffer count = ByteBuffer.allocate(4).putInt(newSize);
+            count.flip();
+            try (FileChannel channel = FileChannel.open(COMMIT_GRAPH.toPath(), StandardOpenOption.WRITE)) {
+                long position = rowOffset(size);
+                while (rows.hasRemaining()) {
+                    position += channel.write(rows, position);
+                }
+                Transaction.force(channel);
+                channel.write(count, 8);
+                Transaction.force(channel);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        map();
+    }
+
+    /**
+     * Write the rows with all of them sorted into a new file, which replaces the graph.
+     *
+     * @param rows     Buffer of the rows
+     * @param rowCount Number of rows
+     */
+    private static void write(ByteBuffer rows, int rowCount) {
+        byte[][] ids = new byte[rowCount][ID_LENGTH];
+        Integer[] sortedPositions = new Integer[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            rows.slice().position(i * ROW_LENGTH).get(ids[i]);
+            sortedPositions[i] = i;
+        }
+        Arrays.sort(sortedPositions, (a, b) -> Arrays.compareUnsigned(ids[a], ids[b]));
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + rowCount * 4);
+        header.putInt(SIGNATURE).putInt(VERSION).putInt(rowCount).putInt(rowCount);
+        for (int position : sortedPositions) {
+            header.putInt(position);
+        }
+        header.flip();
+        Transaction.replace(COMMIT_GRAPH, channel -> {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (rows.hasRemaining()) {
+                channel.write(rows);
+            }
+        });
+    }
+
+    /**
+     * Get the number of commits in the graph.
+     *
+     * @return Number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the SHA1 id of the commit.
+     *
+     * @param i Row position
+     * @return Commit SHA1 id
+     */
+    public String getId(int i) {
+        byte[] id = new byte[ID_LENGTH];
+        buffer.slice().position(rowOffset(i)).get(id);
+        return bytesToHex(id);
+    }
+
+    /**
+     * Get the parents of the commit.
+     *
+     * @param i Row position
+     * @return Array of row positions of zero, one or two parents
+     */
+    public int[] getParents(int i) {
+        int firstParent = buffer.getInt(rowOffset(i) + ID_LENGTH);
+        int secondParent = buffer.getInt(rowOffset(i) + ID_LENGTH + 4);
+        if (firstParent == NONE) {
+            return new int[0];
+        }
+        if (secondParent == NONE) {
+            return new int[]{firstParent};
+        }
+        return new int[]{firstParent, secondParent};
+    }
+
+    /**
+     * Get the first parent of the commit.
+     *
+     * @param i Row position
+     * @return Row position of the first parent, or NONE
+     */
+    public int getFirstParent(int i) {
+        return buffer.getInt(rowOffset(i) + ID_LENGTH);
+    }
+
+    /**
+     * Get the created date of the commit.
+     *
+     * @param i Row position
+     * @return Milliseconds since the epoch
+     */
+    public long getDate(int i) {
+        return buffer.getLong(rowOffset(i) + ID_LENGTH + 8);
+    }
+
+    /**
+     * Get the generation number of the commit.
+     *
+     * @param i Row position
+     * @return Generation number
+     */
+    public int getGeneration(int i) {
+        return buffer.getInt(rowOffset(i) + ID_LENGTH + 16);
+    }
+
+    /**
+     * Get the offset of the row in the file.
+     *
+     * @param i Row position
+     * @return Offset
+     */
+    private int rowOffset(int i) {
+        return HEADER_LENGTH + sortedCount * 4 + i * ROW_LENGTH;
+    }
+
+    /**
+     * Map the file again if another process has changed it since.
+     * Exit with message if the rows read so far are not the first rows of the file any more,
+     * as the caller may hold their positions.
+     */
+    void refresh() {
+        if (isUpToDate()) {
+            return;
+        }
+        int knownSize = size;
+        byte[] lastId = new byte[ID_LENGTH];
+        if (knownSize > 0) {
+            buffer.slice().position(rowOffset(knownSize - 1)).get(lastId);
+        }
+        if (!isValidFile()) {
+            exit("The commit graph was rebuilt by another process; run the command again.");
+        }
+        map();
+        if (size < knownSize || knownSize > 0 && compareId(knownSize - 1, lastId) != 0) {
+            exit("The commit graph was rebuilt by another process; run the command again.");
+        }
+    }
+
+    /**
+     * Tells if the file is unchanged since mapped.
+     *
+     * @return true if up to date
+     */
+    private boolean isUpToDate() {
+        return fileLength == COMMIT_GRAPH.length() && fileLastModified == COMMIT_GRAPH.lastModified();
+    }
+
+    /**
+     * Tells if the file exists in the current format.
+     *
+     * @return true if valid
+     */
+    private static boolean isValidFile() {
+        if (COMMIT_GRAPH.length() < HEADER_LENGTH) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(8);
+        try (FileChannel channel = FileChannel.open(COMMIT_GRAPH.toPath(), StandardOpenOption.READ)) {
+            channel.read(header, 0);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return header.getInt(0) == SIGNATURE && header.getInt(4) == VERSION;
+    }
+
+    /**
+     * Memory-map the file and read the header.
+     */
+    private void map() {
+        try (FileChannel channel = FileChannel.open(COMMIT_GRAPH.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != SIGNATURE || buffer.getInt(4) != VERSION) {
+            throw error("Invalid commit-graph: %s", COMMIT_GRAPH.getPath());
+        }
+        size = buffer.getInt(8);
+        sortedCount = buffer.getInt(12);
+        if (sortedCount > size || rowOffset(size) > buffer.capacity()) {
+            throw error("Invalid commit-graph: %s", COMMIT_GRAPH.getPath());
+        }
+        fileLength = COMMIT_GRAPH.length();
+        fileLastModified = COMMIT_GRAPH.lastModified();
+    }
+}
@@ -0,0 +1,130 @@
+package gitlet;
+
+import java.util.*;
+
+/**
+ * Walk the history on the commit graph from a commit, yielding the commit graph positions
+ * in the order of created date, newest first, without reading the commits.
+ * <p>
+ * Only the frontier of the walk is held in the queue. Commits already reached are marked
+ * with one bit per commit in the graph, and walks sharing the marks never yield the same commit,
+ * so the walks from several branch heads can be merged into one history.
+ *
+ * @author Exuanbo
+ */
+public class CommitWalk implements PrimitiveIterator.OfInt {
+
+    private final CommitGraph graph;
+
+    /**
+     * Marks of the commits reached by this walk or the walks sharing it.
+     */
+    private final BitSet reachedCommits;
+
+    /**
+     * The frontier, newest first.
+     */
+    private final PriorityQueue<Integer> queue;
+
+    /**
+     * Create a walk from the commit.
+     *
+     * @param graph          CommitGraph instance
+     * @param startCommit    Commit graph position to start from
+     * @param reachedCommits BitSet of the commits reached, shared between walks
+     */
+    public CommitWalk(CommitGraph graph, int startCommit, BitSet reachedCommits) {
+        this.graph = graph;
+        this.reachedCommits = reachedCommits;
+        queue = new PriorityQueue<>(newestFirst(graph));
+        if (!reachedCommits.get(startCommit)) {
+            reachedCommits.set(startCommit);
+            queue.add(startCommit);
+        }
+    }
+
+    /**
+     * Get the comparator that orders commits by created date, newest first,
+     * and by generation for commits created at the same time.
+     *
+     * @param graph CommitGraph instance
+     * @return Comparator of commit graph positions
+     */
+    public static Comparator<Integer> newestFirst(CommitGraph graph) {
+        return Comparator.<Integer>comparingLong(graph::getDate)
+            .thenComparingInt(graph::getGeneration)
+            .reversed();
+    }
+
+    /**
+     * Merge the walks into one walk yielding the commits of all of them, newest first.
+     * The walks are expected to share the marks of the commits reached.
+     *
+     * @param graph CommitGraph instance
+     * @param walks List of CommitWalk instances
+     * @return Iterator of commit graph positions
+     */
+    public static PrimitiveIterator.OfInt merge(CommitGraph graph, List<CommitWalk> walks) {
+        Comparator<Integer> commitComparator = newestFirst(graph);
+        PriorityQueue<CommitWalk> walksQueue =
+            new PriorityQueue<>((a, b) -> commitComparator.compare(a.peek(), b.peek()));
+        for (CommitWalk walk : walks) {
+            if (walk.hasNext()) {
+                walksQueue.add(walk);
+            }
+        }
+        return new PrimitiveIterator.OfInt() {
+            @Override
+            public boolean hasNext() {
+                return !walksQueue.isEmpty();
+            }
+
+            @Override
+            public int nextInt() {
+                CommitWalk walk = walksQueue.poll();
+                if (walk == null) {
+                    throw new NoSuchElementException();
+                }
+                int commit = walk.nextInt();
+                // The next commit of the walk changes its place among the others.
+                if (walk.hasNext()) {
+                    walksQueue.add(walk);
+                }
+                return commit;
+            }
+        };
+    }
+
+    /**
+     * Get the next commit without moving past it.
+     *
+     * @return Commit graph position
+     */
+    public int peek() {
+        Integer commit = queue.peek();
+        if (commit == null) {
+            throw new NoSuchElementException();
+        }
+        return commit;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public int nextInt() {
+        Integer commit = queue.poll();
+        if (commit == null) {
+            throw new NoSuchElementException();
+        }
+        for (int parentCommit : graph.getParents(commit)) {
+            if (!reachedCommits.get(parentCommit)) {
+                reachedCommits.set(parentCommit);
+                queue.add(parentCommit);
+            }
+        }
+        return commit;
+    }
+}
@@ -0,0 +1,331 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+
+import static gitlet.MyUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * A long-running process that serves gitlet commands for the repository at the current working directory,
+ * so that the object cache, commit graph, pack index and staging area stay warm between commands.
+ * <p>
+ * The daemon listens on a loopback port, which is written to {@code .gitlet/daemon} together with
+ * a random token that clients must send back. A client forwards its arguments, and the daemon
+ * runs the command and streams back what it prints. If no daemon is running, or it refuses the request,
+ * the client runs the command in its own process.
+ *
+ * <pre>
+ * request:  [token: UTF][working directory: UTF][argc: int][argv: UTF...]
+ * response: [accepted: boolean]([stream: byte][length: int][bytes])*[END: byte][status: int]
+ * </pre>
+ *
+ * @author Exuanbo
+ */
+public class Daemon {
+
+    /**
+     * The file with the port and the token of the running daemon.
+     */
+    public static final File DAEMON_FILE = join(Repository.GITLET_DIR, "daemon");
+
+    /**
+     * Frame type of the end of the response.
+     */
+    private static final byte END = 0;
+
+    /**
+     * Frame type of the standard output.
+     */
+    private static final byte STDOUT = 1;
+
+    /**
+     * Frame type of the standard error.
+     */
+    private static final byte STDERR = 2;
+
+    /**
+     * Timeout of reading a request, so that a stuck client does not block the daemon.
+     */
+    private static final int REQUEST_TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * Whether a client has asked the daemon to stop.
+     */
+    private static boolean stopRequested;
+
+    /**
+     * Forward the command to the running daemon, and print its output.
+     *
+     * @param args Argument array from command line
+     * @return true if the daemon has run the command, false if it should be run in this process
+     */
+    public static boolean forward(String[] args) {
+        if (!DAEMON_FILE.exists()) {
+            return false;
+        }
+        String[] daemonInfo = readContentsAsString(DAEMON_FILE).split("\n");
+        if (daemonInfo.length != 2) {
+            return false;
+        }
+        Socket socket;
+        DataInputStream in;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(daemonInfo[0]));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(daemonInfo[1]);
+            out.writeUTF(getWorkingDirPath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (!in.readBoolean()) {
+                socket.close();
+                return false;
+            }
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+
+        // The command may have already changed the repository, so it must not be run again from here.
+        try (socket) {
+            while (true) {
+                byte stream = in.readByte();
+                if (stream == END) {
+                    int status = in.readInt();
+                    System.out.flush();
+                    if (status != 0) {
+                        System.exit(status);
+                    }
+                    return true;
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                PrintStream target = stream == STDOUT ? System.out : System.err;
+                target.write(bytes);
+                target.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection to the gitlet daemon: " + e.getMessage());
+            System.exit(1);
+            return true;
+        }
+    }
+
+    /**
+     * Serve commands until a client asks to stop.
+     */
+    public static void serve() {
+        if (DAEMON_FILE.exists() && isRunning()) {
+            exit("A gitlet daemon is already running.");
+        }
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            byte[] tokenBytes = new byte[16];
+            new SecureRandom().nextBytes(tokenBytes);
+            String token = bytesToHex(tokenBytes);
+            writeDaemonFile(server.getLocalPort() + "\n" + token);
+            Runtime.getRuntime().addShutdownHook(new Thread(DAEMON_FILE::delete));
+            message("Gitlet daemon listening on port %d.", server.getLocalPort());
+
+            stopRequested = false;
+            while (!stopRequested) {
+                try (Socket socket = server.accept()) {
+                    handle(socket, token);
+                } catch (EOFException ignored) {
+                    // A client probing whether the daemon is running.
+                } catch (IOException e) {
+                    System.err.println("gitlet daemon: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            DAEMON_FILE.delete();
+        }
+    }
+
+    /**
+     * Write the daemon file through a temporary file that is only readable by the owner from the moment
+     * it is created, so that the token is never readable by other users, and rename it into place.
+     *
+     * @param content Port and token
+     */
+    private static void writeDaemonFile(String content) throws IOException {
+        Path dir = DAEMON_FILE.getParentFile().toPath();
+        Path tempFile;
+        try {
+            tempFile = Files.createTempFile(dir, DAEMON_FILE.getName(), ".tmp",
+                PosixFilePermissions.asFileAttribute(EnumSet.of(
+                    PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, where the file gets the permissions of the repository folder.
+            tempFile = Files.createTempFile(dir, DAEMON_FILE.getName(), ".tmp");
+        }
+        try {
+            Files.write(tempFile, content.getBytes(StandardCharsets.UTF_8));
+            Transaction.rename(tempFile.toFile(), DAEMON_FILE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Ask the running daemon to stop.
+     */
+    public static void stop() {
+        if (!forward(new String[]{"daemon", "stop"})) {
+            exit("No gitlet daemon is running.");
+        }
+    }
+
+    /**
+     * Tells if the daemon in the daemon file accepts connections.
+     *
+     * @return true if running
+     */
+    private static boolean isRunning() {
+        try {
+            int port = Integer.parseInt(readContentsAsString(DAEMON_FILE).split("\n")[0]);
+            new Socket(InetAddress.getLoopbackAddress(), port).close();
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read a request and run the command with the output redirected to the client.
+     *
+     * @param socket Client socket
+     * @param token  Token the client must send
+     */
+    private static void handle(Socket socket, String token) throws IOException {
+        socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        String clientToken = in.readUTF();
+        String clientWorkingDir = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        socket.setSoTimeout(0);
+
+        boolean isStop = args.length == 2 && args[0].equals("daemon") && args[1].equals("stop");
+        boolean accepted = MessageDigest.isEqual(
+            clientToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))
+            && clientWorkingDir.equals(getWorkingDirPath())
+            && (isStop || args.length > 0 && !args[0].equals("daemon"));
+        out.writeBoolean(accepted);
+        if (!accepted) {
+            out.flush();
+            return;
+        }
+        if (isStop) {
+            stopRequested = true;
+            out.writeByte(END);
+            out.writeInt(0);
+            out.flush();
+            return;
+        }
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream clientStdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT)));
+        PrintStream clientStderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDERR)));
+        int status = 0;
+        System.setOut(clientStdout);
+        System.setErr(clientStderr);
+        try {
+            Main.run(args);
+        } catch (RuntimeException e) {
+            message("%s", e.getMessage() != null ? e.getMessage() : e.toString());
+            if (Boolean.getBoolean("gitlet.debug")) {
+                e.printStackTrace();
+            }
+            status = 1;
+        } finally {
+            clientStdout.flush();
+            clientStderr.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        out.writeByte(END);
+        out.writeInt(status);
+        out.flush();
+    }
+
+    /**
+     * Get the canonical path of the current working directory.
+     *
+     * @return Path
+     */
+    private static String getWorkingDirPath() {
+        try {
+            return new File(System.getProperty("user.dir")).getCanonicalPath();
+        } catch (IOException e) {
+            return System.getProperty("user.dir");
+        }
+    }
+
+    /**
+     * Output stream that writes each chunk as a frame of the response.
+     */
+    private static class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+
+        private final byte stream;
+
+        FrameOutputStream(DataOutputStream out, byte stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(stream);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
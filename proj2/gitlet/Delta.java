@@ -0,0 +1,219 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.error;
+
+/**
+ * Create and apply binary deltas of copy and insert instructions, in the style of xdelta.
+ * <p>
+ * The base is indexed by the rolling hash of its non-overlapping blocks,
+ * and the target is scanned for matching blocks, which are extended in both directions
+ * and emitted as copies from the base. Bytes in between are emitted as inserts.
+ *
+ * <pre>
+ * delta:  [base length: varint][target length: varint][instruction...]
+ * copy:   [COPY: byte][offset in base: varint][length: varint]
+ * insert: [INSERT: byte][length: varint][bytes]
+ * </pre>
+ *
+ * @author Exuanbo
+ */
+public class Delta {
+
+    private static final byte INSERT = 0;
+
+    private static final byte COPY = 1;
+
+    /**
+     * Length of the blocks to match.
+     */
+    private static final int BLOCK_LENGTH = 16;
+
+    /**
+     * Multiplier of the rolling hash.
+     */
+    private static final int PRIME = 31;
+
+    /**
+     * PRIME to the power of (BLOCK_LENGTH - 1), to remove the outgoing byte from the rolling hash.
+     */
+    private static final int OUT_FACTOR;
+
+    static {
+        int factor = 1;
+        for (int i = 1; i < BLOCK_LENGTH; i++) {
+            factor *= PRIME;
+        }
+        OUT_FACTOR = factor;
+    }
+
+    /**
+     * Create the delta that turns the base into the target.
+     *
+     * @param base   Base content
+     * @param target Target content
+     * @return Delta
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int[] table = index(base);
+        int mask = table.length - 1;
+        int insertStart = 0;
+        int i = 0;
+        int hash = target.length >= BLOCK_LENGTH ? hash(target, 0) : 0;
+        while (i + BLOCK_LENGTH <= target.length) {
+            int candidate = table[hash & mask] - 1;
+            if (candidate >= 0 && Arrays.equals(
+                base, candidate, candidate + BLOCK_LENGTH, target, i, i + BLOCK_LENGTH)) {
+                int start = i;
+                int baseStart = candidate;
+                while (start > insertStart && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+                    start--;
+                    baseStart--;
+                }
+                int end = i + BLOCK_LENGTH;
+                int baseEnd = candidate + BLOCK_LENGTH;
+                while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+                    end++;
+                    baseEnd++;
+                }
+                writeInsert(out, target, insertStart, start);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+                i = end;
+                insertStart = end;
+                if (i + BLOCK_LENGTH <= target.length) {
+                    hash = hash(target, i);
+                }
+                continue;
+            }
+            if (i + BLOCK_LENGTH < target.length) {
+                hash = (hash - target[i] * OUT_FACTOR) * PRIME + target[i + BLOCK_LENGTH];
+            }
+            i++;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply the delta to the base.
+     *
+     * @param base  Base content
+     * @param delta Delta created against the base
+     * @return Target content
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = {0};
+        if (readVarint(delta, position) != base.length) {
+            throw error("Delta does not match its base.");
+        }
+        long targetLength = readVarint(delta, position);
+        if (targetLength > Integer.MAX_VALUE) {
+            throw error("Corrupt delta.");
+        }
+        byte[] target = new byte[(int) targetLength];
+        int targetPosition = 0;
+        while (position[0] < delta.length) {
+            byte instruction = delta[position[0]++];
+            if (instruction == COPY) {
+                long offset = readVarint(delta, position);
+                long length = readVarint(delta, position);
+                if (offset + length > base.length || targetPosition + length > target.length) {
+                    throw error("Corrupt delta.");
+                }
+                System.arraycopy(base, (int) offset, target, targetPosition, (int) length);
+                targetPosition += length;
+            } else if (instruction == INSERT) {
+                long length = readVarint(delta, position);
+                if (position[0] + length > delta.length || targetPosition + length > target.length) {
+                    throw error("Corrupt delta.");
+                }
+                System.arraycopy(delta, position[0], target, targetPosition, (int) length);
+                position[0] += length;
+                targetPosition += length;
+            } else {
+                throw error("Corrupt delta.");
+            }
+        }
+        if (targetPosition != target.length) {
+            throw error("Corrupt delta.");
+        }
+        return target;
+    }
+
+    /**
+     * Build the hash table of the non-overlapping blocks of the base.
+     *
+     * @param base Base content
+     * @return Hash table of block offsets plus one, with 0 for empty slots
+     */
+    private static int[] index(byte[] base) {
+        int blocks = base.length / BLOCK_LENGTH;
+        int[] table = new int[Integer.highestOneBit(Math.max(1, blocks * 2 - 1)) << 1];
+        int mask = table.length - 1;
+        for (int offset = (blocks - 1) * BLOCK_LENGTH; offset >= 0; offset -= BLOCK_LENGTH) {
+            // Walked backwards so that the earliest block wins a collision.
+            table[hash(base, offset) & mask] = offset + 1;
+        }
+        return table;
+    }
+
+    /**
+     * Compute the rolling hash of the block at the offset.
+     *
+     * @param bytes  Content
+     * @param offset Offset of the block
+     * @return Hash
+     */
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_LENGTH; i++) {
+            hash = hash * PRIME + bytes[i];
+        }
+        return hash;
+    }
+
+    /**
+     * Write an insert instruction of the bytes in the range, if not empty.
+     *
+     * @param out   Delta output
+     * @param bytes Target content
+     * @param from  Start of the range, inclusive
+     * @param to    End of the range, exclusive
+     */
+    private static void writeInsert(ByteArrayOutputStream out, byte[] bytes, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        out.write(INSERT);
+        writeVarint(out, to - from);
+        out.write(bytes, from, to - from);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] bytes, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && position[0] < bytes.length; shift += 7) {
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw error("Corrupt delta.");
+    }
+}
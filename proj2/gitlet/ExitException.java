@@ -0,0 +1,23 @@
+package gitlet;
+
+/**
+ * Exception that stops the current command with a message for the user, thrown by {@link MyUtils#exit}.
+ * <p>
+ * Unlike other GitletExceptions, which report corrupt data, it is thrown by a command
+ * that has decided to stop, so the changes made before it are kept.
+ *
+ * @author Exuanbo
+ */
+class ExitException extends GitletException {
+
+    private static final long serialVersionUID = 4420926380470612818L;
+
+    /**
+     * An ExitException with the message to print.
+     *
+     * @param message Message to print
+     */
+    ExitException(String message) {
+        super(message);
+    }
+}
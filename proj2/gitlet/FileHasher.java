@@ -0,0 +1,77 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Hash files into Blob SHA1 ids on a pool of worker threads.
+ * <p>
+ * The number of workers is set by the system property {@code gitlet.hash.threads}
+ * (defaults to the number of processors). Each worker streams the files through its own buffer,
+ * so that memory does not grow with the size of the files.
+ *
+ * @author Exuanbo
+ */
+public class FileHasher {
+
+    /**
+     * Number of worker threads.
+     */
+    private static final int THREADS = Math.max(1,
+        Integer.getInteger("gitlet.hash.threads", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Get the Blob SHA1 id of the file.
+     *
+     * @param file File instance
+     * @return SHA1 id
+     */
+    public static String hash(File file) {
+        return Blob.generateId(file);
+    }
+
+    /**
+     * Get the Blob SHA1 ids of the files, hashing them in parallel.
+     *
+     * @param files List of files
+     * @return Map with file path as key and SHA1 id as value
+     */
+    public static Map<String, String> hashAll(List<File> files) {
+        Map<String, String> filesMap = new HashMap<>();
+        if (THREADS == 1 || files.size() < 2) {
+            for (File file : files) {
+                filesMap.put(file.getPath(), hash(file));
+            }
+            return filesMap;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(THREADS, files.size()));
+        List<Future<String>> futures = new ArrayList<>(files.size());
+        try {
+            for (File file : files) {
+                futures.add(pool.submit(() -> hash(file)));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                filesMap.put(files.get(i).getPath(), futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        return filesMap;
+    }
+}
@@ -0,0 +1,300 @@
+package gitlet;
+
+import java.util.*;
+
+/**
+ * Compute the differences between two sequences of lines with the Myers algorithm.
+ * <p>
+ * Lines are interned into integers, and the common prefix and suffix are skipped
+ * before searching for the middle snake, which is done in linear space
+ * by walking forward from the start and backward from the end at the same time.
+ * If the two sides are too different, the search stops at the furthest reaching point
+ * and gives a correct but possibly longer diff, so that the cost stays bounded.
+ *
+ * @author Exuanbo
+ */
+public class LineDiff {
+
+    /**
+     * Number of edit steps after which the search gives up on finding the shortest diff.
+     */
+    private static final int MAX_COST = 1024;
+
+    private final long[] a;
+
+    private final long[] b;
+
+    private final int aLength;
+
+    private final int bLength;
+
+    /**
+     * Whether each line of the first sequence is deleted.
+     */
+    private final boolean[] aChanged;
+
+    /**
+     * Whether each line of the second sequence is inserted.
+     */
+    private final boolean[] bChanged;
+
+    /**
+     * Furthest reaching x of the forward search on each diagonal, offset by the number of diagonals.
+     */
+    private final int[] forward;
+
+    /**
+     * Furthest reaching x of the backward search on each diagonal, offset by the number of diagonals.
+     */
+    private final int[] backward;
+
+    private final int offset;
+
+    private LineDiff(long[] a, int aLength, long[] b, int bLength) {
+        this.a = a;
+        this.b = b;
+        this.aLength = aLength;
+        this.bLength = bLength;
+        aChanged = new boolean[aLength];
+        bChanged = new boolean[bLength];
+        // The search never goes further than MAX_COST diagonals on either side.
+        offset = Math.min(aLength + bLength, MAX_COST + 1) + 1;
+        forward = new int[2 * offset + 1];
+        backward = new int[2 * offset + 1];
+    }
+
+    /**
+     * Get the hunks that turn the first sequence of lines into the second.
+     *
+     * @param a First List of lines
+     * @param b Second List of lines
+     * @return List of Hunk instances in order
+     */
+    public static List<Hunk> diff(List<String> a, List<String> b) {
+        Map<String, Integer> ids = new HashMap<>();
+        LineDiff lineDiff = new LineDiff(intern(a, ids), a.size(), intern(b, ids), b.size());
+        lineDiff.compare(0, a.size(), 0, b.size());
+        return lineDiff.getHunks();
+    }
+
+    /**
+     * Get the hunks that turn the first sequence of lines into the second,
+     * comparing the lines by their hashes, so that the lines themselves need not be held in memory.
+     *
+     * @param a       Hashes of the first sequence of lines
+     * @param aLength Number of lines in the first sequence
+     * @param b       Hashes of the second sequence of lines
+     * @param bLength Number of lines in the second sequence
+     * @return List of Hunk instances in order
+     */
+    public static List<Hunk> diff(long[] a, int aLength, long[] b, int bLength) {
+        LineDiff lineDiff = new LineDiff(a, aLength, b, bLength);
+        lineDiff.compare(0, aLength, 0, bLength);
+        return lineDiff.getHunks();
+    }
+
+    /**
+     * Split the content into lines, each one with its line terminator.
+     *
+     * @param content Content
+     * @return List of lines
+     */
+    public static List<String> splitLines(String content) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.indexOf('\n', start);
+            end = end < 0 ? content.length() : end + 1;
+            lines.add(content.substring(start, end));
+            start = end;
+        }
+        return lines;
+    }
+
+    /**
+     * Map each distinct line to an integer.
+     *
+     * @param lines List of lines
+     * @param ids   Map with line as key and its integer as value
+     * @return Array of integers
+     */
+    private static long[] intern(List<String> lines, Map<String, Integer> ids) {
+        long[] interned = new long[lines.size()];
+        for (int i = 0; i < interned.length; i++) {
+            interned[i] = ids.computeIfAbsent(lines.get(i), k -> ids.size());
+        }
+        return interned;
+    }
+
+    /**
+     * Mark the changed lines between a[aLow, aHigh) and b[bLow, bHigh).
+     * Iterative on the second half, so that the stack only grows with the first halves.
+     */
+    private void compare(int aLow, int aHigh, int bLow, int bHigh) {
+        while (true) {
+            while (aLow < aHigh && bLow < bHigh && a[aLow] == b[bLow]) {
+                aLow++;
+                bLow++;
+            }
+            while (aLow < aHigh && bLow < bHigh && a[aHigh - 1] == b[bHigh - 1]) {
+                aHigh--;
+                bHigh--;
+            }
+            if (aLow == aHigh) {
+                Arrays.fill(bChanged, bLow, bHigh, true);
+                return;
+            }
+            if (bLow == bHigh) {
+                Arrays.fill(aChanged, aLow, aHigh, true);
+                return;
+            }
+            int[] snake = findMiddleSnake(aLow, aHigh, bLow, bHigh);
+            compare(aLow, snake[0], bLow, snake[1]);
+            aLow = snake[2];
+            bLow = snake[3];
+        }
+    }
+
+    /**
+     * Find the middle snake of the shortest edit script between a[aLow, aHigh) and b[bLow, bHigh),
+     * which are not empty and differ in both the first and the last line.
+     *
+     * @return Array of the start x, start y, end x and end y of the snake
+     */
+    private int[] findMiddleSnake(int aLow, int aHigh, int bLow, int bHigh) {
+        int n = aHigh - aLow;
+        int m = bHigh - bLow;
+        int delta = n - m;
+        boolean isOdd = (delta & 1) != 0;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int maxD = (n + m + 1) / 2;
+        for (int d = 0; d <= maxD; d++) {
+            if (d > MAX_COST) {
+                return findFurthestPoint(aLow, bLow, n, m, d - 1);
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1]
+                    ? forward[offset + k + 1]
+                    : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLow + x] == b[bLow + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int backwardK = delta - k;
+                if (isOdd && backwardK >= -(d - 1) && backwardK <= d - 1
+                    && x + backward[offset + backwardK] >= n) {
+                    return new int[]{aLow + startX, bLow + startY, aLow + x, bLow + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && backward[offset + k - 1] < backward[offset + k + 1]
+                    ? backward[offset + k + 1]
+                    : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aHigh - 1 - x] == b[bHigh - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                int forwardK = delta - k;
+                if (!isOdd && forwardK >= -d && forwardK <= d
+                    && x + forward[offset + forwardK] >= n) {
+                    return new int[]{aHigh - x, bHigh - y, aHigh - startX, bHigh - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("No middle snake found.");
+    }
+
+    /**
+     * Get the point reached by the forward search that is furthest from the start, as an empty snake.
+     *
+     * @param d Number of edit steps searched
+     * @return Array of the start x, start y, end x and end y of the snake
+     */
+    private int[] findFurthestPoint(int aLow, int bLow, int n, int m, int d) {
+        int bestX = 0;
+        int bestY = 0;
+        for (int k = -d; k <= d; k += 2) {
+            int x = Math.min(forward[offset + k], n);
+            int y = Math.min(x - k, m);
+            if (y >= 0 && x + y > bestX + bestY) {
+                bestX = x;
+                bestY = y;
+            }
+        }
+        return new int[]{aLow + bestX, bLow + bestY, aLow + bestX, bLow + bestY};
+    }
+
+    /**
+     * Group the changed lines into hunks.
+     *
+     * @return List of Hunk instances in order
+     */
+    private List<Hunk> getHunks() {
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < aLength || j < bLength) {
+            if (i < aLength && j < bLength && !aChanged[i] && !bChanged[j]) {
+                i++;
+                j++;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < aLength && aChanged[i]) {
+                i++;
+            }
+            while (j < bLength && bChanged[j]) {
+                j++;
+            }
+            hunks.add(new Hunk(aStart, i, bStart, j));
+        }
+        return hunks;
+    }
+
+    /**
+     * A range of lines a[aStart, aEnd) replaced by b[bStart, bEnd).
+     */
+    public static class Hunk {
+
+        private final int aStart;
+
+        private final int aEnd;
+
+        private final int bStart;
+
+        private final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+
+        public int getAStart() {
+            return aStart;
+        }
+
+        public int getAEnd() {
+            return aEnd;
+        }
+
+        public int getBStart() {
+            return bStart;
+        }
+
+        public int getBEnd() {
+            return bEnd;
+        }
+    }
+}
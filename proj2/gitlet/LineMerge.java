@@ -0,0 +1,174 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merge two versions of a file line by line against their common ancestor, in the way of diff3.
+ * <p>
+ * Both versions are diffed against the ancestor, and the hunks of the two diffs
+ * are grouped where their ancestor ranges overlap or touch.
+ * A group changed by only one side takes that side, a group changed in the same way by both sides
+ * takes it once, and only the other groups are written as conflicts between markers.
+ * A conflict spanning the whole file is written the same as the whole-file conflict.
+ *
+ * @author Exuanbo
+ */
+public class LineMerge {
+
+    private static final String MARKER_CURRENT = "<<<<<<< HEAD\n";
+
+    private static final String MARKER_SEPARATOR = "=======\n";
+
+    private static final String MARKER_TARGET = ">>>>>>>";
+
+    private final List<String> base;
+
+    private final List<String> current;
+
+    private final List<String> target;
+
+    private final StringBuilder contentBuilder = new StringBuilder();
+
+    private boolean hasConflict = false;
+
+    private LineMerge(String base, String current, String target) {
+        this.base = LineDiff.splitLines(base);
+        this.current = LineDiff.splitLines(current);
+        this.target = LineDiff.splitLines(target);
+    }
+
+    /**
+     * Merge the content of the current and the target versions.
+     * If either version is deleted, the whole file is a conflict.
+     *
+     * @param baseContent    Content in the common ancestor, or null if absent
+     * @param currentContent Content in the current branch, or null if deleted
+     * @param targetContent  Content in the target branch, or null if deleted
+     * @return Result instance
+     */
+    public static Result merge(String baseContent, String currentContent, String targetContent) {
+        if (currentContent == null || targetContent == null) {
+            String content = MARKER_CURRENT
+                + (currentContent == null ? "" : currentContent)
+                + MARKER_SEPARATOR
+                + (targetContent == null ? "" : targetContent)
+                + MARKER_TARGET;
+            return new Result(content, true);
+        }
+        LineMerge lineMerge = new LineMerge(baseContent == null ? "" : baseContent, currentContent, targetContent);
+        lineMerge.merge();
+        return new Result(lineMerge.contentBuilder.toString(), lineMerge.hasConflict);
+    }
+
+    private void merge() {
+        List<LineDiff.Hunk> currentHunks = LineDiff.diff(base, current);
+        List<LineDiff.Hunk> targetHunks = LineDiff.diff(base, target);
+        int i = 0;
+        int j = 0;
+        // Offsets of the lines in each version from the ancestor before the current group.
+        int currentOffset = 0;
+        int targetOffset = 0;
+        int basePosition = 0;
+        while (i < currentHunks.size() || j < targetHunks.size()) {
+            boolean isCurrentFirst = j == targetHunks.size()
+                || i < currentHunks.size() && currentHunks.get(i).getAStart() <= targetHunks.get(j).getAStart();
+            int groupStart = isCurrentFirst ? currentHunks.get(i).getAStart() : targetHunks.get(j).getAStart();
+            int groupEnd = groupStart;
+            int currentFrom = i;
+            int targetFrom = j;
+            while (true) {
+                if (i < currentHunks.size() && currentHunks.get(i).getAStart() <= groupEnd) {
+                    groupEnd = Math.max(groupEnd, currentHunks.get(i).getAEnd());
+                    i++;
+                } else if (j < targetHunks.size() && targetHunks.get(j).getAStart() <= groupEnd) {
+                    groupEnd = Math.max(groupEnd, targetHunks.get(j).getAEnd());
+                    j++;
+                } else {
+                    break;
+                }
+            }
+
+            append(base, basePosition, groupStart);
+            int[] currentRange = getRange(currentHunks, currentFrom, i, groupStart, groupEnd, currentOffset);
+            int[] targetRange = getRange(targetHunks, targetFrom, j, groupStart, groupEnd, targetOffset);
+            if (targetFrom == j) {
+                append(current, currentRange[0], currentRange[1]);
+            } else if (currentFrom == i || isSameLines(currentRange, targetRange)) {
+                append(target, targetRange[0], targetRange[1]);
+            } else {
+                hasConflict = true;
+                contentBuilder.append(MARKER_CURRENT);
+                append(current, currentRange[0], currentRange[1]);
+                contentBuilder.append(MARKER_SEPARATOR);
+                append(target, targetRange[0], targetRange[1]);
+                contentBuilder.append(MARKER_TARGET);
+                if (groupEnd < base.size() || i < currentHunks.size() || j < targetHunks.size()) {
+                    contentBuilder.append("\n");
+                }
+            }
+            currentOffset = currentRange[1] - groupEnd;
+            targetOffset = targetRange[1] - groupEnd;
+            basePosition = groupEnd;
+        }
+        append(base, basePosition, base.size());
+    }
+
+    /**
+     * Get the range of lines in one version that corresponds to the ancestor range of the group.
+     *
+     * @param hunks      Hunks from the ancestor to the version
+     * @param from       Index of the first hunk in the group
+     * @param to         Index after the last hunk in the group
+     * @param groupStart Start of the ancestor range
+     * @param groupEnd   End of the ancestor range
+     * @param offset     Offset of the lines in the version from the ancestor before the group
+     * @return Array of the start and the end of the range
+     */
+    private static int[] getRange(List<LineDiff.Hunk> hunks, int from, int to,
+                                  int groupStart, int groupEnd, int offset) {
+        if (from == to) {
+            return new int[]{groupStart + offset, groupEnd + offset};
+        }
+        LineDiff.Hunk first = hunks.get(from);
+        LineDiff.Hunk last = hunks.get(to - 1);
+        return new int[]{
+            first.getBStart() - (first.getAStart() - groupStart),
+            last.getBEnd() + (groupEnd - last.getAEnd())
+        };
+    }
+
+    private boolean isSameLines(int[] currentRange, int[] targetRange) {
+        return current.subList(currentRange[0], currentRange[1])
+            .equals(target.subList(targetRange[0], targetRange[1]));
+    }
+
+    private void append(List<String> lines, int start, int end) {
+        for (int i = start; i < end; i++) {
+            contentBuilder.append(lines.get(i));
+        }
+    }
+
+    /**
+     * The merged content and whether it has conflicts.
+     */
+    public static class Result {
+
+        private final String content;
+
+        private final boolean hasConflict;
+
+        Result(String content, boolean hasConflict) {
+            this.content = content;
+            this.hasConflict = hasConflict;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public boolean hasConflict() {
+            return hasConflict;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+import static gitlet.MyUtils.mkdirParent;
+import static gitlet.Utils.join;
+
+/**
+ * Locks that let several gitlet processes share a repository, taken with FileChannel.lock
+ * on files in {@code .gitlet/locks}, so that they are released by the operating system
+ * if a process dies while holding them.
+ * <p>
+ * Each command holds the index lock while it runs. Read-only commands share it,
+ * and commands that change the index or the working directory hold it alone.
+ * A reader that has to write a file, such as the stat cache of the index, a commit graph missing
+ * a commit or a journal left by a crash, upgrades to holding it alone first.
+ * Each ref is locked alone only while it is compared with the value the command read
+ * and then written, so that commands that only change refs can run alongside the readers.
+ *
+ * <pre>
+ * .gitlet/locks
+ * ├── index
+ * ├── HEAD
+ * └── refs
+ *     └── heads
+ *         └── [branch]
+ * </pre>
+ *
+ * @author Exuanbo
+ */
+public class LockManager {
+
+    /**
+     * The folder of the lock files.
+     */
+    public static final File LOCKS_DIR = join(Repository.GITLET_DIR, "locks");
+
+    /**
+     * The lock file of the index and the working directory.
+     */
+    private static final File INDEX_LOCK = join(LOCKS_DIR, "index");
+
+    /**
+     * The index lock held by the running command, or null.
+     */
+    private static Lock indexLock;
+
+    /**
+     * Number of times the index lock has been taken by this process.
+     */
+    private static int indexLockCount;
+
+    private LockManager() {
+    }
+
+    /**
+     * Lock the index for the running command, waiting until other processes release it.
+     *
+     * @param isShared Whether other readers may hold it at the same time
+     */
+    public static void lockIndex(boolean isShared) {
+        indexLock = lock(INDEX_LOCK, isShared);
+        indexLockCount++;
+    }
+
+    /**
+     * Get the number of times the index lock has been taken by this process, so that what other processes
+     * may have left behind can be checked once each time, rather than once per process.
+     *
+     * @return Number of index locks taken
+     */
+    public static int getIndexLockCount() {
+        return indexLockCount;
+    }
+
+    /**
+     * Release the index lock of the running command, if held.
+     */
+    public static void unlockIndex() {
+        if (indexLock != null) {
+            Lock lock = indexLock;
+            indexLock = null;
+            lock.close();
+        }
+    }
+
+    /**
+     * Hold the index lock alone if the running command shares it, waiting until other processes release it.
+     * The shared lock is released first, so that two readers upgrading at once do not wait for each other,
+     * which means other commands may run in between, and what was read before must be checked again.
+     *
+     * @return true if the lock was shared and is now held alone
+     */
+    public static boolean upgradeIndexLock() {
+        if (indexLock == null || !indexLock.fileLock.isShared()) {
+            return false;
+        }
+        unlockIndex();
+        lockIndex(false);
+        return true;
+    }
+
+    /**
+     * Lock the ref alone, waiting until other processes release it.
+     *
+     * @param ref File instance of HEAD or a branch head
+     * @return Lock instance
+     */
+    public static Lock lockRef(File ref) {
+        File lockFile = new File(LOCKS_DIR, Repository.GITLET_DIR.toPath().relativize(ref.toPath()).toString());
+        return lock(lockFile, false);
+    }
+
+    private static Lock lock(File lockFile, boolean isShared) {
+        mkdirParent(lockFile);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Lock(channel.lock(0, Long.MAX_VALUE, isShared));
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // The lock was not taken anyway.
+                }
+            }
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * A held lock, released by closing it.
+     */
+    public static class Lock implements AutoCloseable {
+
+        private final FileLock fileLock;
+
+        private Lock(FileLock fileLock) {
+            this.fileLock = fileLock;
+        }
+
+        /**
+         * Release the lock and close its file.
+         */
+        @Override
+        public void close() {
+            try {
+                fileLock.channel().close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package gitlet;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+import static gitlet.MyUtils.exit;
+
+/**
+ * Limits of the commits printed by log and global-log,
+ * parsed from the options {@code -n <count>}, {@code --since <date>} and {@code --until <date>}.
+ * <p>
+ * A date is either {@code yyyy-MM-dd} or {@code yyyy-MM-ddTHH:mm[:ss]} in the local time zone.
+ * A date without time covers the whole day, so that both limits include it.
+ *
+ * @author Exuanbo
+ */
+public class LogFilter {
+
+    private int maxCount = Integer.MAX_VALUE;
+
+    private long since = Long.MIN_VALUE;
+
+    private long until = Long.MAX_VALUE;
+
+    private LogFilter() {
+    }
+
+    /**
+     * Parse the options following the command.
+     *
+     * @param args Argument array from command line
+     * @return LogFilter instance
+     */
+    public static LogFilter parse(String[] args) {
+        LogFilter filter = new LogFilter();
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                exit("Incorrect operands.");
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-n" -> filter.maxCount = parseCount(value);
+                case "--since" -> filter.since = parseDate(value, false);
+                case "--until" -> filter.until = parseDate(value, true);
+                default -> exit("Incorrect operands.");
+            }
+        }
+        return filter;
+    }
+
+    private static int parseCount(String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        exit("Incorrect operands.");
+        return 0;
+    }
+
+    /**
+     * Get the milliseconds since the epoch of the date.
+     *
+     * @param value      Date string
+     * @param isEndOfDay Whether a date without time means the end of the day
+     * @return Milliseconds since the epoch
+     */
+    private static long parseDate(String value, boolean isEndOfDay) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (value.indexOf('T') < 0) {
+                LocalDate date = LocalDate.parse(value);
+                if (isEndOfDay) {
+                    return date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+                }
+                return date.atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            return LocalDateTime.parse(value).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            exit("Incorrect operands.");
+            return 0;
+        }
+    }
+
+    /**
+     * Get the maximum number of commits to print.
+     *
+     * @return Number of commits
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * Whether the commit is older than the since limit.
+     * As commits are walked newest first, the walk stops at such a commit.
+     *
+     * @param date Milliseconds since the epoch of the commit
+     * @return true if the commit is too old
+     */
+    public boolean isTooOld(long date) {
+        return date < since;
+    }
+
+    /**
+     * Whether the commit is newer than the until limit.
+     *
+     * @param date Milliseconds since the epoch of the commit
+     * @return true if the commit is too new
+     */
+    public boolean isTooNew(long date) {
+        return date > until;
+    }
+}
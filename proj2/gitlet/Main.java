@@ -1,6 +1,7 @@
 package gitlet;
 
 import static gitlet.MyUtils.exit;
+import static gitlet.Utils.message;
 
 /**
  * Driver class for Gitlet, a subset of the Git version-control system.
@@ -14,6 +15,58 @@ public class Main {
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        if (Boolean.getBoolean("gitlet.debug")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(ObjectCache::printStats));
+        }
+        if (args.length > 0 && !args[0].equals("daemon") && Daemon.forward(args)) {
+            return;
+        }
+        run(args);
+    }
+
+    /**
+     * Run the command while holding the index lock, and print the message it stops with, if any.
+     *
+     * @param args Argument array from command line
+     */
+    public static void run(String[] args) {
+        try {
+            lockIndex(args);
+            Transaction.run(() -> {
+                Checkout.recover();
+                dispatch(args);
+            });
+        } catch (GitletException e) {
+            message(e.getMessage());
+        } finally {
+            LockManager.unlockIndex();
+        }
+    }
+
+    /**
+     * Lock the index for the command. Commands that read the repository, or only change refs
+     * with compare-and-swap, share the lock, and the others hold it alone.
+     * Other commands, and any command outside of a repository, run without the lock.
+     *
+     * @param args Argument array from command line
+     */
+    private static void lockIndex(String[] args) {
+        if (args.length == 0 || !Repository.GITLET_DIR.isDirectory()) {
+            return;
+        }
+        switch (args[0]) {
+            case "log", "global-log", "find", "status", "diff", "branch", "rm-branch" ->
+                LockManager.lockIndex(true);
+            case "add", "commit", "rm", "checkout", "reset", "merge", "pack", "gc" -> LockManager.lockIndex(false);
+        }
+    }
+
+    /**
+     * Dispatch the command to Repository.
+     *
+     * @param args Argument array from command line
+     */
+    private static void dispatch(String[] args) {
         if (args.length == 0) {
             exit("Please enter a command.");
         }
@@ -47,16 +100,18 @@ public class Main {
             }
             case "log" -> {
                 Repository.checkWorkingDir();
-                validateNumArgs(args, 1);
-                new Repository().log();
+                new Repository().log(LogFilter.parse(args));
             }
             case "global-log" -> {
                 Repository.checkWorkingDir();
-                validateNumArgs(args, 1);
-                Repository.globalLog();
+                Repository.globalLog(LogFilter.parse(args));
             }
             case "find" -> {
                 Repository.checkWorkingDir();
+                if (args.length == 3 && args[1].equals("--grep")) {
+                    Repository.findWords(args[2]);
+                    return;
+                }
                 validateNumArgs(args, 2);
                 String message = args[1];
                 if (message.length() == 0) {
@@ -119,6 +174,35 @@ public class Main {
                 String branchName = args[1];
                 new Repository().merge(branchName);
             }
+            case "diff" -> {
+                Repository.checkWorkingDir();
+                if (args.length > 3) {
+                    exit("Incorrect operands.");
+                }
+                String fromCommitId = args.length > 1 ? args[1] : null;
+                String toCommitId = args.length > 2 ? args[2] : null;
+                new Repository().diff(fromCommitId, toCommitId);
+            }
+            case "pack" -> {
+                Repository.checkWorkingDir();
+                validateNumArgs(args, 1);
+                Repository.pack();
+            }
+            case "gc" -> {
+                Repository.checkWorkingDir();
+                validateNumArgs(args, 1);
+                Repository.gc();
+            }
+            case "daemon" -> {
+                Repository.checkWorkingDir();
+                if (args.length == 1) {
+                    Daemon.serve();
+                } else if (args.length == 2 && args[1].equals("stop")) {
+                    Daemon.stop();
+                } else {
+                    exit("Incorrect operands.");
+                }
+            }
             default -> exit("No command with that name exists.");
         }
     }
@@ -0,0 +1,237 @@
+package gitlet;
+
+import java.util.*;
+
+/**
+ * Compute the best common ancestors of two commits on the commit graph.
+ * <p>
+ * Commits are painted down from both sides with PARENT1 and PARENT2 flags,
+ * following all parents in the order of generation number.
+ * A commit painted with both flags is a common ancestor, and everything below it is marked STALE.
+ * The walk stops once only stale commits are left in the queue,
+ * and common ancestors reachable from another common ancestor are removed,
+ * which handles criss-cross histories with more than one best common ancestor.
+ * The queued commits that are not stale are counted as they are queued, painted and taken,
+ * so that checking whether to keep walking does not scan the queue.
+ *
+ * @author Exuanbo
+ */
+public class MergeBase {
+
+    private static final int PARENT1 = 1;
+
+    private static final int PARENT2 = 1 << 1;
+
+    private static final int STALE = 1 << 2;
+
+    private static final int RESULT = 1 << 3;
+
+    /**
+     * The commit graph to walk.
+     */
+    private final CommitGraph graph;
+
+    /**
+     * The painted flags Map with commit graph position as key.
+     */
+    private final Map<Integer, Integer> flags = new HashMap<>();
+
+    /**
+     * The commit graph positions in the queue, each of which is queued at most once.
+     */
+    private final Set<Integer> queuedCommits = new HashSet<>();
+
+    /**
+     * Number of the queued commits that are not stale.
+     */
+    private int nonStaleCount;
+
+    /**
+     * Number of commits visited while walking.
+     */
+    private int visitedCount;
+
+    public MergeBase(CommitGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Get all best common ancestors of the two commits,
+     * in the order of created date with the latest first.
+     *
+     * @param commitA Commit graph position
+     * @param commitB Commit graph position
+     * @return List of commit graph positions
+     */
+    public List<Integer> compute(int commitA, int commitB) {
+        flags.clear();
+        visitedCount = 0;
+        if (commitA == commitB) {
+            return new ArrayList<>(List.of(commitA));
+        }
+        List<Integer> commonAncestors = paintDownToCommon(commitA, commitB);
+        List<Integer> bestCommonAncestors = removeRedundant(commonAncestors);
+        bestCommonAncestors.sort(Comparator.<Integer>comparingLong(graph::getDate).reversed());
+        return bestCommonAncestors;
+    }
+
+    /**
+     * Get the number of commits visited by the last computation.
+     *
+     * @return Number of commits
+     */
+    public int getVisitedCount() {
+        return visitedCount;
+    }
+
+    /**
+     * Paint down from both commits until only stale commits are left.
+     *
+     * @param commitA Commit graph position
+     * @param commitB Commit graph position
+     * @return List of common ancestors, possibly redundant
+     */
+    private List<Integer> paintDownToCommon(int commitA, int commitB) {
+        List<Integer> result = new ArrayList<>();
+        Queue<Integer> queue = new PriorityQueue<>(newestFirst());
+        queuedCommits.clear();
+        nonStaleCount = 0;
+        paint(commitA, PARENT1, queue);
+        paint(commitB, PARENT2, queue);
+
+        while (nonStaleCount > 0) {
+            int commit = poll(queue);
+            visitedCount++;
+            int flag = getFlags(commit) & (PARENT1 | PARENT2 | STALE);
+            if (flag == (PARENT1 | PARENT2)) {
+                if ((getFlags(commit) & RESULT) == 0) {
+                    flags.put(commit, getFlags(commit) | RESULT);
+                    result.add(commit);
+                }
+                flag |= STALE;
+            }
+            for (int parent : graph.getParents(commit)) {
+                if ((getFlags(parent) & flag) == flag) {
+                    continue;
+                }
+                paint(parent, flag, queue);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove the common ancestors that are ancestors of another common ancestor.
+     *
+     * @param commonAncestors List of common ancestors
+     * @return List of best common ancestors
+     */
+    private List<Integer> removeRedundant(List<Integer> commonAncestors) {
+        if (commonAncestors.size() < 2) {
+            return commonAncestors;
+        }
+        List<Integer> result = new ArrayList<>();
+        for (int candidate : commonAncestors) {
+            boolean isRedundant = false;
+            for (int other : commonAncestors) {
+                if (other != candidate && isAncestor(candidate, other)) {
+                    isRedundant = true;
+                    break;
+                }
+            }
+            if (!isRedundant) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tells if the commit is an ancestor of the descendant.
+     * Commits with a generation number not greater than the ancestor are never walked past.
+     *
+     * @param ancestor   Commit graph position
+     * @param descendant Commit graph position
+     * @return true if reachable from the descendant
+     */
+    private boolean isAncestor(int ancestor, int descendant) {
+        int minGeneration = graph.getGeneration(ancestor);
+        if (graph.getGeneration(descendant) <= minGeneration) {
+            return false;
+        }
+        Set<Integer> checkedCommits = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(descendant);
+        while (!stack.isEmpty()) {
+            int commit = stack.pop();
+            visitedCount++;
+            for (int parent : graph.getParents(commit)) {
+                if (parent == ancestor) {
+                    return true;
+                }
+                if (graph.getGeneration(parent) > minGeneration && checkedCommits.add(parent)) {
+                    stack.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add the flag to the commit and enqueue it unless already queued,
+     * in which case it is walked with the new flags when taken.
+     *
+     * @param commit Commit graph position
+     * @param flag   Flags to add
+     * @param queue  Queue of commits to walk
+     */
+    private void paint(int commit, int flag, Queue<Integer> queue) {
+        int oldFlags = getFlags(commit);
+        int newFlags = oldFlags | flag;
+        flags.put(commit, newFlags);
+        if (queuedCommits.add(commit)) {
+            queue.add(commit);
+            if ((newFlags & STALE) == 0) {
+                nonStaleCount++;
+            }
+        } else if ((oldFlags & STALE) == 0 && (newFlags & STALE) != 0) {
+            nonStaleCount--;
+        }
+    }
+
+    /**
+     * Take the next commit from the queue.
+     *
+     * @param queue Queue of commits to walk
+     * @return Commit graph position
+     */
+    private int poll(Queue<Integer> queue) {
+        int commit = queue.poll();
+        queuedCommits.remove(commit);
+        if ((getFlags(commit) & STALE) == 0) {
+            nonStaleCount--;
+        }
+        return commit;
+    }
+
+    /**
+     * Get the painted flags of the commit.
+     *
+     * @param commit Commit graph position
+     * @return Flags
+     */
+    private int getFlags(int commit) {
+        return flags.getOrDefault(commit, 0);
+    }
+
+    /**
+     * Order commits by generation number, then by created date, with the newest first.
+     *
+     * @return Comparator instance
+     */
+    private Comparator<Integer> newestFirst() {
+        return Comparator.<Integer>comparingInt(graph::getGeneration)
+            .thenComparingLong(graph::getDate)
+            .reversed();
+    }
+}
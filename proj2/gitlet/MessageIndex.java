@@ -0,0 +1,452 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static gitlet.MyUtils.debug;
+import static gitlet.MyUtils.hexToBytes;
+import static gitlet.Utils.join;
+
+/**
+ * Represent the message-index file, which maps commit messages and the words in them to commits,
+ * so that commits can be found by message without reading every commit object.
+ * <p>
+ * The file is a header followed by fixed-width records of
+ * {@code [key: 8 bytes][commit-graph row position: 4 bytes]}, where the key is the 64-bit FNV-1a hash
+ * of either the whole message or a lowercase word in it. The first records are sorted by key
+ * and binary searched, and the records of later commits are appended after them and scanned,
+ * until there are enough of them to be merged into the sorted records.
+ * The header holds the number of commits indexed and the id of the last one,
+ * so the index catches up with the commits added to the graph since, and is rebuilt if the graph was.
+ * Different messages may share a hash, so matches are checked against the commit messages.
+ *
+ * @author Exuanbo
+ */
+public class MessageIndex {
+
+    /**
+     * The message-index file.
+     */
+    public static final File MESSAGE_INDEX = join(Repository.GITLET_DIR, "message-index");
+
+    /**
+     * "MIDX" in ASCII.
+     */
+    private static final int SIGNATURE = 0x4d494458;
+
+    /**
+     * Format version.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Length of the raw SHA1 id.
+     */
+    private static final int ID_LENGTH = 20;
+
+    /**
+     * Signature, version, number of commits, number of sorted records, number of appended records,
+     * and the raw SHA1 id of the last commit indexed.
+     */
+    private static final int HEADER_LENGTH = 20 + ID_LENGTH;
+
+    /**
+     * Key and row position.
+     */
+    private static final int RECORD_LENGTH = 8 + 4;
+
+    /**
+     * Kind of the key hashed from the whole message.
+     */
+    private static final byte KEY_MESSAGE = 0;
+
+    /**
+     * Kind of the key hashed from a word in the message.
+     */
+    private static final byte KEY_WORD = 1;
+
+    /**
+     * Appended records are merged into the sorted records once there are more than this many of them
+     * and more than an eighth of the sorted records.
+     */
+    private static final int MIN_APPENDED_TO_MERGE = 1024;
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The memory-mapped file.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Number of commits indexed, which are the first rows of the commit graph.
+     */
+    private final int commitCount;
+
+    private final int sortedCount;
+
+    private final int appendedCount;
+
+    private MessageIndex(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        commitCount = buffer.getInt(8);
+        sortedCount = buffer.getInt(12);
+        appendedCount = buffer.getInt(16);
+    }
+
+    /**
+     * Get the commits whose message is exactly the same.
+     *
+     * @param message Commit message
+     * @return Set of commit-graph row positions
+     */
+    public static Set<Integer> findMessage(String message) {
+        CommitGraph graph = CommitGraph.get();
+        MessageIndex index = update(graph);
+        Set<Integer> positions = new HashSet<>();
+        for (int i : index.find(hash(KEY_MESSAGE, message))) {
+            if (Commit.fromFile(graph.getId(i)).getMessage().equals(message)) {
+                positions.add(i);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Get the commits whose message contains all the words, ignoring case.
+     *
+     * @param text Words separated by spaces or punctuation
+     * @return Set of commit-graph row positions
+     */
+    public static Set<Integer> findWords(String text) {
+        Set<String> words = getWords(text);
+        if (words.isEmpty()) {
+            return Collections.emptySet();
+        }
+        CommitGraph graph = CommitGraph.get();
+        MessageIndex index = update(graph);
+        Set<Integer> candidates = null;
+        for (String word : words) {
+            Set<Integer> wordCandidates = new HashSet<>(index.find(hash(KEY_WORD, word)));
+            if (candidates == null) {
+                candidates = wordCandidates;
+            } else {
+                candidates.retainAll(wordCandidates);
+            }
+            if (candidates.isEmpty()) {
+                return candidates;
+            }
+        }
+        Set<Integer> positions = new HashSet<>();
+        for (int i : candidates) {
+            if (getWords(Commit.fromFile(graph.getId(i)).getMessage()).containsAll(words)) {
+                positions.add(i);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Index the commits added to the commit graph since the last update.
+     * Called after a commit is added to the graph.
+     */
+    public static void update() {
+        update(CommitGraph.get());
+    }
+
+    /**
+     * Rebuild the index from all commits in the commit graph.
+     */
+    public static void rebuild() {
+        CommitGraph graph = CommitGraph.get();
+        Records records = new Records();
+        for (int i = 0; i < graph.size(); i++) {
+            records.addCommit(Commit.fromFile(graph.getId(i)), i);
+        }
+        write(records, graph);
+        debug("message-index: %d commit(s) indexed", graph.size());
+    }
+
+    /**
+     * Bring the index up to date with the commit graph, rebuilding it if missing or out of date.
+     * A shared index lock is upgraded before the file is written, and the graph checked again.
+     *
+     * @param graph CommitGraph instance
+     * @return MessageIndex instance
+     */
+    private static MessageIndex update(CommitGraph graph) {
+        MessageIndex index = load();
+        if (index != null && index.isPrefixOf(graph) && index.commitCount == graph.size()) {
+            return index;
+        }
+        if (LockManager.upgradeIndexLock()) {
+            graph.refresh();
+            return update(graph);
+        }
+        if (index == null || !index.isPrefixOf(graph)) {
+            rebuild();
+            return load();
+        }
+        if (index.commitCount == graph.size()) {
+            return index;
+        }
+        Records records = new Records();
+        for (int i = index.commitCount; i < graph.size(); i++) {
+            records.addCommit(Commit.fromFile(graph.getId(i)), i);
+        }
+        if (index.appendedCount + records.size > Math.max(MIN_APPENDED_TO_MERGE, index.sortedCount / 8)) {
+            index.readRecords(records);
+            write(records, graph);
+        } else {
+            index.append(records, graph);
+        }
+        return load();
+    }
+
+    /**
+     * Tells if the commits indexed are still the first rows of the commit graph.
+     *
+     * @param graph CommitGraph instance
+     * @return true if up to date or behind
+     */
+    private boolean isPrefixOf(CommitGraph graph) {
+        if (commitCount > graph.size()) {
+            return false;
+        }
+        if (commitCount == 0) {
+            return true;
+        }
+        byte[] lastId = new byte[ID_LENGTH];
+        buffer.slice().position(20).get(lastId);
+        return Arrays.equals(lastId, hexToBytes(graph.getId(commitCount - 1)));
+    }
+
+    /**
+     * Get the row positions of the records with the key.
+     *
+     * @param key Hashed key
+     * @return List of row positions
+     */
+    private List<Integer> find(long key) {
+        List<Integer> positions = new ArrayList<>();
+        int low = 0;
+        int high = sortedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keyAt(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < sortedCount && keyAt(i) == key; i++) {
+            positions.add(positionAt(i));
+        }
+        for (int i = sortedCount; i < sortedCount + appendedCount; i++) {
+            if (keyAt(i) == key) {
+                positions.add(positionAt(i));
+            }
+        }
+        return positions;
+    }
+
+    private long keyAt(int i) {
+        return buffer.getLong(HEADER_LENGTH + i * RECORD_LENGTH);
+    }
+
+    private int positionAt(int i) {
+        return buffer.getInt(HEADER_LENGTH + i * RECORD_LENGTH + 8);
+    }
+
+    /**
+     * Add all records of the index to the Records instance.
+     *
+     * @param records Records instance
+     */
+    private void readRecords(Records records) {
+        for (int i = 0; i < sortedCount + appendedCount; i++) {
+            records.add(keyAt(i), positionAt(i));
+        }
+    }
+
+    /**
+     * Append the records of new commits after the last record, and then update the header,
+     * forcing the records to disk first so that the header never counts records that are not there.
+     * Records past the count are left over from an interrupted write and get overwritten.
+     *
+     * @param records Records instance
+     * @param graph   CommitGraph instance
+     */
+    private void append(Records records, CommitGraph graph) {
+        ByteBuffer recordsBuffer = records.toBuffer();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH - 8);
+        header.putInt(graph.size()).putInt(sortedCount).putInt(appendedCount + records.size);
+        header.put(hexToBytes(graph.getId(graph.size() - 1)));
+        header.flip();
+        try (FileChannel channel = FileChannel.open(MESSAGE_INDEX.toPath(), StandardOpenOption.WRITE)) {
+            long position = HEADER_LENGTH + (long) (sortedCount + appendedCount) * RECORD_LENGTH;
+            while (recordsBuffer.hasRemaining()) {
+                position += channel.write(recordsBuffer, position);
+            }
+            Transaction.force(channel);
+            channel.write(header, 8);
+            Transaction.force(channel);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Write the records sorted into a temporary file forced to disk, which replaces the index.
+     *
+     * @param records Records instance
+     * @param graph   CommitGraph instance
+     */
+    private static void write(Records records, CommitGraph graph) {
+        records.sort();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(SIGNATURE).putInt(VERSION).putInt(graph.size()).putInt(records.size).putInt(0);
+        header.put(graph.size() == 0 ? new byte[ID_LENGTH] : hexToBytes(graph.getId(graph.size() - 1)));
+        header.flip();
+        ByteBuffer recordsBuffer = records.toBuffer();
+        Transaction.replace(MESSAGE_INDEX, channel -> {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (recordsBuffer.hasRemaining()) {
+                channel.write(recordsBuffer);
+            }
+        });
+    }
+
+    /**
+     * Memory-map the index file.
+     *
+     * @return MessageIndex instance, or null if missing or invalid
+     */
+    private static MessageIndex load() {
+        if (!MESSAGE_INDEX.exists()) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(MESSAGE_INDEX.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != SIGNATURE || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        MessageIndex index = new MessageIndex(buffer);
+        long recordsLength = (long) (index.sortedCount + index.appendedCount) * RECORD_LENGTH;
+        if (HEADER_LENGTH + recordsLength > buffer.capacity()) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Get the distinct lowercase words in the text.
+     *
+     * @param text Text
+     * @return Set of words
+     */
+    private static Set<String> getWords(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : WORD_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Hash the kind of the key and the text with 64-bit FNV-1a.
+     *
+     * @param kind KEY_MESSAGE or KEY_WORD
+     * @param text Message or word
+     * @return Hashed key
+     */
+    private static long hash(byte kind, String text) {
+        long hash = (FNV_OFFSET_BASIS ^ kind) * FNV_PRIME;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Records held in parallel arrays of keys and row positions.
+     */
+    private static class Records {
+
+        private long[] keys = new long[16];
+
+        private int[] positions = new int[16];
+
+        private int size = 0;
+
+        /**
+         * Add the records of the message and its words.
+         *
+         * @param commit   Commit instance
+         * @param position Row position of the commit
+         */
+        private void addCommit(Commit commit, int position) {
+            add(hash(KEY_MESSAGE, commit.getMessage()), position);
+            for (String word : getWords(commit.getMessage())) {
+                add(hash(KEY_WORD, word), position);
+            }
+        }
+
+        private void add(long key, int position) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            keys[size] = key;
+            positions[size] = position;
+            size++;
+        }
+
+        /**
+         * Sort the records by key, and by row position for the same key.
+         */
+        private void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingLong(i -> keys[i]).thenComparingInt(i -> positions[i]));
+            long[] sortedKeys = new long[size];
+            int[] sortedPositions = new int[size];
+            for (int i = 0; i < size; i++) {
+                sortedKeys[i] = keys[order[i]];
+                sortedPositions[i] = positions[order[i]];
+            }
+            keys = sortedKeys;
+            positions = sortedPositions;
+        }
+
+        private ByteBuffer toBuffer() {
+            ByteBuffer buffer = ByteBuffer.allocate(size * RECORD_LENGTH);
+            for (int i = 0; i < size; i++) {
+                buffer.putLong(keys[i]).putInt(positions[i]);
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -1,9 +1,21 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 import static gitlet.Utils.*;
@@ -15,6 +27,37 @@ import static gitlet.Utils.*;
  */
 public class MyUtils {
 
+    /**
+     * Offset of the class name in a serialized object,
+     * after the stream magic, the stream version, TC_OBJECT and TC_CLASSDESC.
+     */
+    private static final int SERIALIZED_CLASS_NAME_OFFSET = 6;
+
+    private static final byte[] SERIALIZED_COMMIT_CLASS_NAME = serializedClassName(Commit.class);
+
+    private static final byte[] SERIALIZED_BLOB_CLASS_NAME = serializedClassName(Blob.class);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Size of the direct buffer each thread streams files through while hashing.
+     */
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * SHA1 MessageDigest of each thread, reused between hashes.
+     */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    });
+
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
     /**
      * Get a lazy initialized value.
      *
@@ -37,6 +80,30 @@ public class MyUtils {
         }
     }
 
+    /**
+     * Create the missing parent directories of the file.
+     *
+     * @param file File instance
+     */
+    public static void mkdirParent(File file) {
+        File dir = file.getParentFile();
+        if (dir != null) {
+            mkdirs(dir);
+        }
+    }
+
+    /**
+     * Create the directory and its missing parent directories, if missing.
+     *
+     * @param dir Directory File instance
+     */
+    public static void mkdirs(File dir) {
+        // Another thread may create the directory at the same time.
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IllegalArgumentException(String.format("mkdir: %s: Failed to create.", dir.getPath()));
+        }
+    }
+
     /**
      * Delete the file.
      *
@@ -49,31 +116,231 @@ public class MyUtils {
     }
 
     /**
-     * Print a message and exit with status code 0.
+     * Stop the current command with a message, which is printed by Main.
+     * Thrown as ExitException instead of calling System.exit, so that the daemon keeps running.
      *
      * @param message String to print
      * @param args    Arguments referenced by the format specifiers in the format string
      */
     public static void exit(String message, Object... args) {
-        message(message, args);
-        System.exit(0);
+        throw new ExitException(String.format(message, args));
     }
 
     /**
-     * Tells if the deserialized object instance of given class.
+     * Print a message to stderr if the system property gitlet.debug is true.
      *
-     * @param file File instance
-     * @param c    Target class
-     * @return true if is instance
+     * @param message String to print
+     * @param args    Arguments referenced by the format specifiers in the format string
+     */
+    public static void debug(String message, Object... args) {
+        if (Boolean.getBoolean("gitlet.debug")) {
+            System.err.printf(message, args);
+            System.err.println();
+        }
+    }
+
+    /**
+     * Get the type of the object with the SHA1 id.
+     * Look up the pack first and fall back to the loose object file.
+     * Only the header is read, and objects in the legacy serialized format
+     * are told apart by the class name at the beginning of the stream.
+     *
+     * @param id SHA1 id
+     * @return ObjectWriter.TYPE_COMMIT, ObjectWriter.TYPE_BLOB, ObjectWriter.TYPE_TREE, or 0 if unknown
+     */
+    public static byte getObjectType(String id) {
+        int headerLength = SERIALIZED_CLASS_NAME_OFFSET + SERIALIZED_COMMIT_CLASS_NAME.length;
+        byte[] header = PackFile.readHeader(id, headerLength);
+        if (header == null) {
+            try (InputStream in = new FileInputStream(Transaction.getReadableFile(getObjectFile(id)))) {
+                header = in.readNBytes(headerLength);
+            } catch (IOException ignored) {
+                return 0;
+            }
+        }
+        if (ObjectReader.isEncoded(header)) {
+            return ObjectReader.getType(header);
+        }
+        if (isSerialized(header)) {
+            if (isSerializedClass(header, SERIALIZED_COMMIT_CLASS_NAME)) {
+                return ObjectWriter.TYPE_COMMIT;
+            }
+            if (isSerializedClass(header, SERIALIZED_BLOB_CLASS_NAME)) {
+                return ObjectWriter.TYPE_BLOB;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Tells if the serialized object is of the class, from the length-prefixed name of its class descriptor.
+     *
+     * @param header    Beginning of the serialized object
+     * @param className Length-prefixed class name
+     * @return true if of the class
+     */
+    private static boolean isSerializedClass(byte[] header, byte[] className) {
+        return header.length >= SERIALIZED_CLASS_NAME_OFFSET + className.length
+            && Arrays.equals(header, SERIALIZED_CLASS_NAME_OFFSET, SERIALIZED_CLASS_NAME_OFFSET + className.length,
+            className, 0, className.length);
+    }
+
+    /**
+     * Encode the class name as in a serialized class descriptor.
+     *
+     * @param c Class instance
+     * @return Class name prefixed with its length
+     */
+    private static byte[] serializedClassName(Class<?> c) {
+        byte[] name = c.getName().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + name.length).putShort((short) name.length).put(name).array();
+    }
+
+    /**
+     * Tells if the object with the SHA1 id exists, either packed or loose.
+     *
+     * @param id SHA1 id
+     * @return true if exists
+     */
+    public static boolean objectExists(String id) {
+        return PackFile.contains(id) || Transaction.getReadableFile(getObjectFile(id)).exists();
+    }
+
+    /**
+     * Read the content of the object with the SHA1 id.
+     * Look up the pack first and fall back to the loose object file.
+     *
+     * @param id SHA1 id
+     * @return Object content
+     */
+    public static byte[] readObjectBytes(String id) {
+        byte[] packed = PackFile.read(id);
+        if (packed != null) {
+            return packed;
+        }
+        return readContents(Transaction.getReadableFile(getObjectFile(id)));
+    }
+
+    /**
+     * Open a stream of the object content with the SHA1 id.
+     * Look up the pack first and fall back to the loose object file.
+     *
+     * @param id SHA1 id
+     * @return Buffered InputStream instance
+     */
+    public static InputStream openObject(String id) {
+        InputStream packed = PackFile.open(id);
+        if (packed != null) {
+            return new BufferedInputStream(packed);
+        }
+        try {
+            return new BufferedInputStream(new FileInputStream(Transaction.getReadableFile(getObjectFile(id))));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Transfer a range of the object content with the SHA1 id to the channel,
+     * without copying it through the heap. Look up the pack first and fall back to the loose object file.
+     *
+     * @param id       SHA1 id
+     * @param position Position of the range in the object
+     * @param count    Length of the range
+     * @param target   Channel to write to
+     * @return true if transferred, false if the object is stored as a delta
+     */
+    public static boolean transferObject(String id, long position, long count, WritableByteChannel target) {
+        if (PackFile.contains(id)) {
+            return PackFile.transferTo(id, position, count, target);
+        }
+        File file = Transaction.getReadableFile(getObjectFile(id));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            transferFully(channel, position, count, target);
+            return true;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Transfer the range of the file to the channel, which may take more than one call of transferTo.
+     *
+     * @param channel  Channel of the file to read from
+     * @param position Position of the range in the file
+     * @param count    Length of the range
+     * @param target   Channel to write to
+     */
+    public static void transferFully(FileChannel channel, long position, long count, WritableByteChannel target)
+        throws IOException {
+        while (count > 0) {
+            long n = channel.transferTo(position, count, target);
+            if (n <= 0) {
+                throw error("Unexpected end of file.");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Tells if the object content is in the legacy Java serialization format.
+     *
+     * @param bytes Object content
+     * @return true if serialized by ObjectOutputStream
+     */
+    public static boolean isSerialized(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == (byte) 0xac && bytes[1] == (byte) 0xed;
+    }
+
+    /**
+     * Deserialize the object from the bytes.
+     *
+     * @param bytes Serialized content
+     * @param c     Expected class
+     * @param <T>   Type of the object
+     * @return Object instance
+     */
+    public static <T extends Serializable> T deserialize(byte[] bytes, Class<T> c) {
+        return deserialize(new ByteArrayInputStream(bytes), c);
+    }
+
+    /**
+     * Deserialize the object from the stream.
+     *
+     * @param stream InputStream instance
+     * @param c      Expected class
+     * @param <T>    Type of the object
+     * @return Object instance
      */
-    public static boolean isFileInstanceOf(File file, Class<?> c) {
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
-            return c.isInstance(in.readObject());
-        } catch (Exception ignored) {
-            return false;
+    public static <T extends Serializable> T deserialize(InputStream stream, Class<T> c) {
+        try (ObjectInputStream in = new ObjectInputStream(stream)) {
+            return c.cast(in.readObject());
+        } catch (IOException | ClassCastException | ClassNotFoundException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
     }
 
+    /**
+     * Convert the object content in the legacy Java serialization format to the binary object format.
+     *
+     * @param bytes Object content
+     * @return Encoded object, or the same bytes if already encoded
+     */
+    public static byte[] migrateObjectBytes(byte[] bytes) {
+        if (!isSerialized(bytes)) {
+            return bytes;
+        }
+        Serializable obj = deserialize(bytes, Serializable.class);
+        if (obj instanceof Commit) {
+            return ((Commit) obj).encode();
+        }
+        if (obj instanceof Blob) {
+            return ((Blob) obj).encode();
+        }
+        throw error("Unknown object: %s", obj.getClass().getName());
+    }
+
     /**
      * Get a File instance with the path generated from SHA1 id in the objects folder.
      *
@@ -107,17 +374,90 @@ public class MyUtils {
     }
 
     /**
-     * Save the serializable object to the file path.
-     * Create a parent directory if not exists.
+     * Get the SHA1 MessageDigest of the current thread, reset for a new hash.
      *
-     * @param file File instance
-     * @param obj  Serializable object
+     * @return MessageDigest instance
      */
-    public static void saveObjectFile(File file, Serializable obj) {
-        File dir = file.getParentFile();
-        if (!dir.exists()) {
-            mkdir(dir);
+    public static MessageDigest getSha1Digest() {
+        MessageDigest digest = SHA1_DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Get the raw SHA1 digest of the prefix followed by the file content.
+     * The file is streamed through a direct buffer, so that memory stays the same whatever its size.
+     *
+     * @param prefix String hashed before the content
+     * @param file   File instance
+     * @return Raw 20 bytes
+     */
+    public static byte[] sha1Digest(String prefix, File file) {
+        MessageDigest digest = getSha1Digest();
+        digest.update(prefix.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = HASH_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Convert the hexadecimal SHA1 id to raw bytes.
+     *
+     * @param hex Hexadecimal string of even length
+     * @return Raw bytes
+     */
+    public static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new NumberFormatException("Not a hexadecimal string: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
         }
-        writeObject(file, obj);
+        return bytes;
+    }
+
+    /**
+     * Convert raw bytes to the hexadecimal SHA1 id.
+     *
+     * @param bytes Raw bytes
+     * @return Hexadecimal string
+     */
+    public static String bytesToHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Save the encoded object to the file path, through a temporary file renamed over it.
+     * Create a parent directory if not exists.
+     *
+     * @param file    File instance
+     * @param content Encoded object
+     */
+    public static void saveObjectFile(File file, byte[] content) {
+        Transaction.writeObjectFile(file, channel -> {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        });
     }
 }
@@ -0,0 +1,123 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static gitlet.MyUtils.debug;
+
+/**
+ * A bounded least-recently-used cache of decoded objects keyed by SHA1 id.
+ * <p>
+ * Each object is weighed by its approximate size in memory,
+ * and the least recently used objects are evicted once the total weight exceeds
+ * the system property {@code gitlet.cache.maxBytes} (defaults to 64 MiB).
+ * Objects are immutable once saved, but pack and gc may store them differently or drop them,
+ * so cached objects only hold what they decode to, never where their content is stored,
+ * and the cache is cleared after gc.
+ *
+ * @author Exuanbo
+ */
+public class ObjectCache {
+
+    /**
+     * Maximum total weight of the cached objects.
+     */
+    private static final long MAX_WEIGHT = Long.getLong("gitlet.cache.maxBytes", 64L * 1024 * 1024);
+
+    /**
+     * The cached objects in the order of access.
+     */
+    private static final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long totalWeight;
+
+    private static long hits;
+
+    private static long misses;
+
+    private static long evictions;
+
+    /**
+     * Get the object with the SHA1 id from the cache, or load and cache it.
+     * The object is loaded without holding the lock, so that loads can run concurrently.
+     *
+     * @param id     SHA1 id
+     * @param c      Expected class
+     * @param loader Function to load the object from the SHA1 id
+     * @param weigher Function to get the approximate size of the object in bytes
+     * @param <T>    Type of the object
+     * @return Object instance
+     */
+    public static <T> T get(String id, Class<T> c, Function<String, T> loader, ToLongFunction<T> weigher) {
+        synchronized (ObjectCache.class) {
+            Entry entry = entries.get(id);
+            if (entry != null && c.isInstance(entry.value)) {
+                hits++;
+                return c.cast(entry.value);
+            }
+            misses++;
+        }
+        T value = loader.apply(id);
+        put(id, value, weigher.applyAsLong(value));
+        return value;
+    }
+
+    /**
+     * Put the object into the cache and evict the least recently used ones if needed.
+     * Objects heavier than the maximum weight are not cached.
+     *
+     * @param id     SHA1 id
+     * @param value  Object instance
+     * @param weight Approximate size of the object in bytes
+     */
+    private static synchronized void put(String id, Object value, long weight) {
+        if (weight > MAX_WEIGHT) {
+            return;
+        }
+        Entry prevEntry = entries.put(id, new Entry(value, weight));
+        if (prevEntry != null) {
+            totalWeight -= prevEntry.weight;
+        }
+        totalWeight += weight;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (totalWeight > MAX_WEIGHT && iterator.hasNext()) {
+            totalWeight -= iterator.next().weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove all cached objects.
+     */
+    public static synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    /**
+     * Print the hit and miss counters if debugging is enabled.
+     */
+    public static synchronized void printStats() {
+        debug("object cache: %d hit(s), %d miss(es), %d eviction(s), %d object(s) and %d byte(s) cached",
+            hits, misses, evictions, entries.size(), totalWeight);
+    }
+
+    /**
+     * A cached object with its weight.
+     */
+    private static class Entry {
+
+        private final Object value;
+
+        private final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static gitlet.MyUtils.bytesToHex;
+import static gitlet.Utils.error;
+
+/**
+ * Reader of the binary object format written by {@link ObjectWriter}.
+ * Reads from a stream, so that large trailing content can be left unread.
+ *
+ * @author Exuanbo
+ */
+public class ObjectReader {
+
+    private final InputStream in;
+
+    private final byte version;
+
+    private long position;
+
+    /**
+     * Create a reader from the encoded object and check the header.
+     *
+     * @param bytes Encoded object
+     * @param type  Expected object type
+     */
+    public ObjectReader(byte[] bytes, byte type) {
+        this(new ByteArrayInputStream(bytes), type);
+    }
+
+    /**
+     * Create a reader from the stream and check the header.
+     *
+     * @param in   InputStream positioned at the start of the object
+     * @param type Expected object type
+     */
+    public ObjectReader(InputStream in, byte type) {
+        this.in = in;
+        byte[] header = readFully(ObjectWriter.HEADER_LENGTH);
+        if (!isEncoded(header)) {
+            throw error("Unknown object format.");
+        }
+        if (header[2] > ObjectWriter.VERSION_CHUNKED) {
+            throw error("Unsupported object version: %d", header[2]);
+        }
+        if (header[3] != type) {
+            throw error("Unexpected object type: %c", (char) header[3]);
+        }
+        version = header[2];
+    }
+
+    /**
+     * Tells if the bytes start with the header of the binary object format.
+     *
+     * @param bytes Object content
+     * @return true if encoded by ObjectWriter
+     */
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes.length >= ObjectWriter.HEADER_LENGTH
+            && bytes[0] == ObjectWriter.MAGIC_0
+            && bytes[1] == ObjectWriter.MAGIC_1;
+    }
+
+    /**
+     * Get the object type from the header.
+     *
+     * @param header At least the first 4 bytes of the object
+     * @return Object type, or 0 if not encoded by ObjectWriter
+     */
+    public static byte getType(byte[] header) {
+        return isEncoded(header) ? header[3] : 0;
+    }
+
+    /**
+     * Get the format version of the object.
+     *
+     * @return Format version
+     */
+    public byte getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of bytes read so far, including the header.
+     *
+     * @return Position in the object
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Read a single byte.
+     *
+     * @return Byte value
+     */
+    public byte readByte() {
+        return readFully(1)[0];
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @return Value
+     */
+    public long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw error("Malformed varint.");
+    }
+
+    /**
+     * Read an unsigned varint that fits in an int.
+     *
+     * @return Value
+     */
+    public int readLength() {
+        long value = readVarint();
+        if (value > Integer.MAX_VALUE) {
+            throw error("Length too large: %d", value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Read a signed varint with zigzag encoding.
+     *
+     * @return Value
+     */
+    public long readSignedVarint() {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read a length-prefixed byte array.
+     *
+     * @return Byte array
+     */
+    public byte[] readBytes() {
+        return readFully(readLength());
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string.
+     *
+     * @return String
+     */
+    public String readString() {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a raw 20 bytes SHA1 id.
+     *
+     * @return SHA1 id
+     */
+    public String readId() {
+        return bytesToHex(readFully(ObjectWriter.ID_LENGTH));
+    }
+
+    /**
+     * Read exactly n bytes.
+     *
+     * @param n Number of bytes
+     * @return Byte array
+     */
+    private byte[] readFully(int n) {
+        try {
+            byte[] bytes = in.readNBytes(n);
+            if (bytes.length != n) {
+                throw error("Unexpected end of object.");
+            }
+            position += n;
+            return bytes;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static gitlet.MyUtils.hexToBytes;
+
+/**
+ * Writer of the binary object format.
+ *
+ * <pre>
+ * [magic: 2 bytes][version: 1 byte][type: 1 byte][fields...]
+ * </pre>
+ * <p>
+ * Fields are length-prefixed with unsigned varints,
+ * and SHA1 ids are written as raw 20 bytes.
+ *
+ * @author Exuanbo
+ */
+public class ObjectWriter {
+
+    /**
+     * First byte of the magic number, "GL" in ASCII.
+     * Java serialization streams start with 0xACED, so the two formats never collide.
+     */
+    static final byte MAGIC_0 = 'G';
+
+    /**
+     * Second byte of the magic number.
+     */
+    static final byte MAGIC_1 = 'L';
+
+    /**
+     * Current format version.
+     * Version 2 moves the Blob content to the end of the object, optionally compressed.
+     * Version 3 replaces the tracked files of a Commit with the SHA1 id of its root Tree.
+     */
+    static final byte VERSION = 3;
+
+    /**
+     * Format version of Blob objects with chunked content and of Chunk objects.
+     * Only written for those objects, so that the encoding of the others,
+     * which the Tree ids are generated from, stays the same.
+     */
+    static final byte VERSION_CHUNKED = 4;
+
+    /**
+     * Length of magic, version and type.
+     */
+    static final int HEADER_LENGTH = 4;
+
+    /**
+     * Length of the raw SHA1 id.
+     */
+    static final int ID_LENGTH = 20;
+
+    /**
+     * Type of Commit objects.
+     */
+    static final byte TYPE_COMMIT = 'c';
+
+    /**
+     * Type of Blob objects.
+     */
+    static final byte TYPE_BLOB = 'b';
+
+    /**
+     * Type of Tree objects.
+     */
+    static final byte TYPE_TREE = 't';
+
+    /**
+     * Type of Chunk objects.
+     */
+    static final byte TYPE_CHUNK = 'k';
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * Create a writer and write the header.
+     *
+     * @param type Object type
+     */
+    public ObjectWriter(byte type) {
+        this(type, VERSION);
+    }
+
+    /**
+     * Create a writer and write the header with an earlier format version,
+     * for objects that can only be encoded in that version.
+     *
+     * @param type    Object type
+     * @param version Format version
+     */
+    public ObjectWriter(byte type, byte version) {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(version);
+        out.write(type);
+    }
+
+    /**
+     * Write a single byte.
+     *
+     * @param b Byte value
+     * @return this
+     */
+    public ObjectWriter writeByte(byte b) {
+        out.write(b);
+        return this;
+    }
+
+    /**
+     * Write an unsigned varint.
+     *
+     * @param value Non-negative value
+     * @return this
+     */
+    public ObjectWriter writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+        return this;
+    }
+
+    /**
+     * Write a signed varint with zigzag encoding.
+     *
+     * @param value Any value
+     * @return this
+     */
+    public ObjectWriter writeSignedVarint(long value) {
+        return writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Write a length-prefixed byte array.
+     *
+     * @param bytes Byte array
+     * @return this
+     */
+    public ObjectWriter writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        out.writeBytes(bytes);
+        return this;
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string.
+     *
+     * @param s String
+     * @return this
+     */
+    public ObjectWriter writeString(String s) {
+        return writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a SHA1 id as raw 20 bytes.
+     *
+     * @param id SHA1 id
+     * @return this
+     */
+    public ObjectWriter writeId(String id) {
+        out.writeBytes(hexToBytes(id));
+        return this;
+    }
+
+    /**
+     * Get the encoded object.
+     *
+     * @return Byte array
+     */
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+}
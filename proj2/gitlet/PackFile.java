@@ -0,0 +1,1132 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+import static gitlet.MyUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * Represent the packfile that consolidates loose objects into a single file.
+ *
+ * <pre>
+ * .gitlet/objects/pack
+ * ├── objects.pack
+ * └── objects.idx
+ * </pre>
+ * <p>
+ * The pack is append-only: a header followed by entries of
+ * {@code [type: 1 byte][length: 8 bytes][data]}.
+ * Packs of version 1 have 4-byte lengths. They are still read, and rewritten in the current version
+ * before anything is appended to them.
+ * The index is a header followed by {@code [SHA1: 20 bytes][offset: 8 bytes]} records
+ * sorted by SHA1, so that it can be memory-mapped and binary searched.
+ * <p>
+ * A blob entry is either the whole object, or a {@code [base SHA1: 20 bytes][delta]}
+ * against an earlier blob of the same path, taken from a window of its latest versions.
+ * Deltas are computed between the uncompressed objects, and chains are at most
+ * {@code gitlet.pack.depth} (defaults to 50) deltas deep.
+ * Resolved bases are kept in a cache bounded by {@code gitlet.pack.deltaCacheBytes} (defaults to 16 MiB),
+ * so that reading the versions of a file one after another does not resolve each chain from its root.
+ * <p>
+ * Since the pack is append-only, objects are only dropped from it by {@link #repack(Set, long)},
+ * which writes a new pack and index next to the current ones and renames them over them in turn.
+ * A rename left half done by a crash is finished or undone before the pack is next read.
+ *
+ * @author Exuanbo
+ */
+public class PackFile {
+
+    /**
+     * The pack directory.
+     */
+    public static final File PACK_DIR = join(Repository.OBJECTS_DIR, "pack");
+
+    /**
+     * The pack data file.
+     */
+    private static final File PACK = join(PACK_DIR, "objects.pack");
+
+    /**
+     * The pack index file.
+     */
+    private static final File PACK_INDEX = join(PACK_DIR, "objects.idx");
+
+    /**
+     * The pack data file being written by repack.
+     */
+    private static final File NEW_PACK = join(PACK_DIR, "objects.pack.new");
+
+    /**
+     * The pack index file being written by repack, renamed after the pack data file.
+     */
+    private static final File NEW_PACK_INDEX = join(PACK_DIR, "objects.idx.new");
+
+    /**
+     * "PACK" in ASCII.
+     */
+    private static final int PACK_SIGNATURE = 0x5041434b;
+
+    /**
+     * "PIDX" in ASCII.
+     */
+    private static final int INDEX_SIGNATURE = 0x50494458;
+
+    /**
+     * Format version of the pack.
+     */
+    private static final int PACK_VERSION = 2;
+
+    /**
+     * Format version of the pack with 4-byte entry lengths.
+     */
+    private static final int PACK_VERSION_INT_LENGTH = 1;
+
+    /**
+     * Format version of the index.
+     */
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Signature and version.
+     */
+    private static final int PACK_HEADER_LENGTH = 8;
+
+    /**
+     * Signature, version and number of entries.
+     */
+    private static final int INDEX_HEADER_LENGTH = 12;
+
+    /**
+     * Length of the raw SHA1 id.
+     */
+    private static final int ID_LENGTH = 20;
+
+    /**
+     * Raw SHA1 id and offset.
+     */
+    private static final int INDEX_RECORD_LENGTH = ID_LENGTH + 8;
+
+    /**
+     * Type and length.
+     */
+    private static final int ENTRY_HEADER_LENGTH = 9;
+
+    /**
+     * Type and length in packs of version 1.
+     */
+    private static final int ENTRY_HEADER_LENGTH_INT_LENGTH = 5;
+
+    /**
+     * Entry type of a whole object.
+     */
+    private static final byte ENTRY_TYPE_WHOLE = 0;
+
+    /**
+     * Entry type of a blob stored as a delta against another blob.
+     */
+    private static final byte ENTRY_TYPE_DELTA = 1;
+
+    /**
+     * Maximum number of deltas to apply to get an object.
+     */
+    private static final int MAX_DELTA_DEPTH = Integer.getInteger("gitlet.pack.depth", 50);
+
+    /**
+     * Number of the latest versions of a path to try as the delta base.
+     */
+    private static final int DELTA_WINDOW = Integer.getInteger("gitlet.pack.window", 10);
+
+    /**
+     * Blobs with larger content are always stored whole.
+     */
+    private static final long MAX_DELTA_CONTENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Maximum total size of the cached delta bases.
+     */
+    private static final long DELTA_CACHE_MAX_BYTES = Long.getLong("gitlet.pack.deltaCacheBytes", 16L * 1024 * 1024);
+
+    /**
+     * The loaded pack. Reloaded if the index file has changed since.
+     */
+    private static PackFile loaded;
+
+    /**
+     * Number of index locks taken when a repack interrupted by a crash was last checked for,
+     * as another process may have crashed while this one did not hold the lock.
+     */
+    private static int repackRecoveredLockCount = -1;
+
+    /**
+     * The memory-mapped index.
+     */
+    private final MappedByteBuffer index;
+
+    /**
+     * Number of objects in the pack.
+     */
+    private final int size;
+
+    /**
+     * Channel of the pack data file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Format version of the pack data file.
+     */
+    private final int packVersion;
+
+    /**
+     * Last modified time of the index file when loaded.
+     */
+    private final long indexLastModified;
+
+    /**
+     * Length of the index file when loaded.
+     */
+    private final long indexLength;
+
+    /**
+     * The resolved and uncompressed delta bases in the order of access.
+     */
+    private final Map<String, byte[]> deltaBaseCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total size of the cached delta bases.
+     */
+    private long deltaBaseCacheBytes;
+
+    private PackFile(MappedByteBuffer index, FileChannel channel, long indexLastModified, long indexLength) {
+        this.index = index;
+        this.channel = channel;
+        this.indexLastModified = indexLastModified;
+        this.indexLength = indexLength;
+        if (index.getInt(0) != INDEX_SIGNATURE || index.getInt(4) != INDEX_VERSION) {
+            throw error("Invalid pack index: %s", PACK_INDEX.getPath());
+        }
+        size = index.getInt(8);
+        ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_LENGTH);
+        readFully(header, 0);
+        header.flip();
+        packVersion = header.getInt(4);
+        if (header.getInt(0) != PACK_SIGNATURE
+            || packVersion != PACK_VERSION && packVersion != PACK_VERSION_INT_LENGTH) {
+            throw error("Invalid pack: %s", PACK.getPath());
+        }
+    }
+
+    /**
+     * Get the current pack.
+     *
+     * @return PackFile instance, or null if nothing has been packed yet
+     */
+    private static synchronized PackFile get() {
+        if (repackRecoveredLockCount != LockManager.getIndexLockCount()) {
+            recoverRepack();
+            repackRecoveredLockCount = LockManager.getIndexLockCount();
+        }
+        if (!PACK_INDEX.exists()) {
+            return null;
+        }
+        if (loaded != null
+            && loaded.indexLastModified == PACK_INDEX.lastModified()
+            && loaded.indexLength == PACK_INDEX.length()) {
+            return loaded;
+        }
+        if (loaded != null) {
+            loaded.close();
+        }
+        loaded = load();
+        return loaded;
+    }
+
+    /**
+     * Memory-map the index and open the pack data file.
+     *
+     * @return PackFile instance
+     */
+    private static PackFile load() {
+        long lastModified = PACK_INDEX.lastModified();
+        long length = PACK_INDEX.length();
+        try (FileChannel indexChannel = FileChannel.open(PACK_INDEX.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            FileChannel packChannel = FileChannel.open(PACK.toPath(), StandardOpenOption.READ);
+            return new PackFile(index, packChannel, lastModified, length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Close the pack data file.
+     */
+    private void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Tells if the object with the SHA1 id is in the pack.
+     *
+     * @param id SHA1 id
+     * @return true if packed
+     */
+    public static boolean contains(String id) {
+        PackFile pack = get();
+        return pack != null && pack.search(hexToBytes(id)) >= 0;
+    }
+
+    /**
+     * Read the object content with the SHA1 id from the pack.
+     *
+     * @param id SHA1 id
+     * @return Object content, or null if not packed
+     */
+    public static byte[] read(String id) {
+        PackFile pack = get();
+        if (pack == null) {
+            return null;
+        }
+        int i = pack.search(hexToBytes(id));
+        if (i < 0) {
+            return null;
+        }
+        return pack.readObject(pack.offsetAt(i));
+    }
+
+    /**
+     * Read the beginning of the object with the SHA1 id from the pack, without reading the rest of it.
+     * A delta has the header of its base, since only blobs are stored as deltas against blobs.
+     *
+     * @param id     SHA1 id
+     * @param length Number of bytes to read
+     * @return Beginning of the object, shorter if the object is, or null if not packed
+     */
+    public static byte[] readHeader(String id, int length) {
+        PackFile pack = get();
+        if (pack == null) {
+            return null;
+        }
+        int i = pack.search(hexToBytes(id));
+        if (i < 0) {
+            return null;
+        }
+        for (int depth = 0; depth <= MAX_DELTA_DEPTH; depth++) {
+            long offset = pack.offsetAt(i);
+            EntryHeader header = pack.readEntryHeader(offset);
+            if (header.type == ENTRY_TYPE_WHOLE) {
+                ByteBuffer data = ByteBuffer.allocate((int) Math.min(length, header.length));
+                pack.readFully(data, header.dataOffset);
+                return data.array();
+            }
+            String baseId = pack.readBaseId(header);
+            i = pack.search(hexToBytes(baseId));
+            if (i < 0) {
+                throw error("Missing delta base: %s", baseId);
+            }
+        }
+        throw error("Delta chain too long: %s", id);
+    }
+
+    /**
+     * Open a stream of the object content with the SHA1 id from the pack.
+     *
+     * @param id SHA1 id
+     * @return InputStream instance, or null if not packed
+     */
+    public static InputStream open(String id) {
+        PackFile pack = get();
+        if (pack == null) {
+            return null;
+        }
+        int i = pack.search(hexToBytes(id));
+        if (i < 0) {
+            return null;
+        }
+        long offset = pack.offsetAt(i);
+        EntryHeader header = pack.readEntryHeader(offset);
+        if (header.type == ENTRY_TYPE_DELTA) {
+            return new ByteArrayInputStream(pack.readObject(offset));
+        }
+        return pack.new EntryInputStream(header.dataOffset, header.length);
+    }
+
+    /**
+     * Transfer a range of the object content with the SHA1 id from the pack to the channel.
+     * Between files, FileChannel.transferTo maps the pack region or lets the kernel copy it,
+     * so the content is never copied through the heap.
+     *
+     * @param id       SHA1 id
+     * @param position Position of the range in the object
+     * @param count    Length of the range
+     * @param target   Channel to write to
+     * @return true if transferred, false if not packed or stored as a delta
+     */
+    public static boolean transferTo(String id, long position, long count, WritableByteChannel target) {
+        PackFile pack = get();
+        if (pack == null) {
+            return false;
+        }
+        int i = pack.search(hexToBytes(id));
+        if (i < 0) {
+            return false;
+        }
+        long offset = pack.offsetAt(i);
+        EntryHeader header = pack.readEntryHeader(offset);
+        if (header.type != ENTRY_TYPE_WHOLE) {
+            return false;
+        }
+        if (position + count > header.length) {
+            throw error("Unexpected end of object: %s", id);
+        }
+        try {
+            transferFully(pack.channel, header.dataOffset + position, count, target);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Get all packed object ids starting with the prefix.
+     *
+     * @param prefix Abbreviate SHA1 id
+     * @return List of SHA1 ids
+     */
+    public static List<String> findByPrefix(String prefix) {
+        List<String> ids = new ArrayList<>();
+        PackFile pack = get();
+        if (pack == null) {
+            return ids;
+        }
+        String paddedPrefix = prefix.length() % 2 == 0 ? prefix : prefix + "0";
+        byte[] key = Arrays.copyOf(hexToBytes(paddedPrefix), ID_LENGTH);
+        int i = pack.search(key);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < pack.size; i++) {
+            String id = bytesToHex(pack.idAt(i));
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Append all loose objects to the pack, rewrite the index and delete the loose objects.
+     * Objects in the legacy Java serialization format are converted to the binary object format.
+     * <p>
+     * New blobs are grouped by path and packed from the oldest, each one as a delta against
+     * the version in the window that gives the smallest delta, if smaller than the whole object.
+     */
+    public static void packLooseObjects() {
+        packLooseObjects(id -> true);
+    }
+
+    /**
+     * Append the loose objects accepted by the filter to the pack, and delete them.
+     *
+     * @param filter Function that accepts the SHA1 ids of the objects to pack
+     */
+    private static void packLooseObjects(Predicate<String> filter) {
+        Map<String, File> looseObjectFiles = getLooseObjectFiles();
+        looseObjectFiles.keySet().removeIf(filter.negate());
+        if (looseObjectFiles.isEmpty()) {
+            return;
+        }
+        if (!PACK_DIR.exists()) {
+            mkdir(PACK_DIR);
+        }
+
+        SortedMap<String, Long> offsets = new TreeMap<>();
+        Map<String, List<DeltaBase>> packedBlobs = new HashMap<>();
+        PackFile pack = get();
+        if (pack != null && pack.packVersion != PACK_VERSION) {
+            Set<String> packedIds = new HashSet<>();
+            for (int i = 0; i < pack.size; i++) {
+                packedIds.add(bytesToHex(pack.idAt(i)));
+            }
+            pack.rewrite(packedIds);
+            pack = get();
+        }
+        if (pack != null) {
+            for (int i = 0; i < pack.size; i++) {
+                offsets.put(bytesToHex(pack.idAt(i)), pack.offsetAt(i));
+            }
+            packedBlobs = pack.getBlobsByPath();
+        }
+
+        List<Map.Entry<String, File>> newObjects = new ArrayList<>();
+        for (Map.Entry<String, File> entry : looseObjectFiles.entrySet()) {
+            if (!offsets.containsKey(entry.getKey())) {
+                newObjects.add(entry);
+            }
+        }
+        newObjects.sort(Comparator.comparingLong(entry -> entry.getValue().lastModified()));
+        List<Map.Entry<String, File>> wholeObjects = new ArrayList<>();
+        Map<String, List<Map.Entry<String, File>>> newBlobs = new LinkedHashMap<>();
+        for (Map.Entry<String, File> entry : newObjects) {
+            String path = readDeltaPath(entry.getValue());
+            if (path == null) {
+                wholeObjects.add(entry);
+            } else {
+                newBlobs.computeIfAbsent(path, k -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        int deltaCount = 0;
+        try (RandomAccessFile packFile = new RandomAccessFile(PACK, "rw")) {
+            if (pack == null) {
+                // Without an index, nothing in the pack data file is found, so it is started over.
+                packFile.setLength(0);
+                packFile.writeInt(PACK_SIGNATURE);
+                packFile.writeInt(PACK_VERSION);
+            }
+            long end = packFile.length();
+            // A failed append is cut off, so that the next one does not leave it in the middle of the pack.
+            try {
+                packFile.seek(end);
+                for (Map.Entry<String, File> entry : wholeObjects) {
+                    offsets.put(entry.getKey(), packFile.getFilePointer());
+                    writeWholeEntry(packFile, entry.getValue());
+                }
+                for (Map.Entry<String, List<Map.Entry<String, File>>> group : newBlobs.entrySet()) {
+                    Deque<DeltaBase> window = new ArrayDeque<>();
+                    List<DeltaBase> packedVersions = packedBlobs.getOrDefault(group.getKey(), List.of());
+                    for (DeltaBase packedVersion : packedVersions.subList(
+                        Math.max(0, packedVersions.size() - DELTA_WINDOW), packedVersions.size())) {
+                        window.addLast(new DeltaBase(
+                            packedVersion.id, packedVersion.depth, pack.readDeltaBase(packedVersion.id)));
+                    }
+                    for (Map.Entry<String, File> entry : group.getValue()) {
+                        String id = entry.getKey();
+                        byte[] bytes = migrateObjectBytes(readContents(entry.getValue()));
+                        byte[] uncompressed = Blob.decompress(bytes);
+                        DeltaBase bestBase = null;
+                        byte[] bestDelta = null;
+                        for (DeltaBase base : window) {
+                            if (base.depth >= MAX_DELTA_DEPTH) {
+                                continue;
+                            }
+                            byte[] delta = Delta.create(base.content, uncompressed);
+                            int bestLength = bestDelta == null ? bytes.length : ID_LENGTH + bestDelta.length;
+                            if (ID_LENGTH + delta.length < bestLength) {
+                                bestBase = base;
+                                bestDelta = delta;
+                            }
+                        }
+                        offsets.put(id, packFile.getFilePointer());
+                        int depth = 0;
+                        if (bestBase == null) {
+                            writeEntry(packFile, ENTRY_TYPE_WHOLE, bytes);
+                        } else {
+                            writeEntry(packFile, ENTRY_TYPE_DELTA, hexToBytes(bestBase.id), bestDelta);
+                            depth = bestBase.depth + 1;
+                            deltaCount++;
+                        }
+                        window.addLast(new DeltaBase(id, depth, uncompressed));
+                        if (window.size() > DELTA_WINDOW) {
+                            window.removeFirst();
+                        }
+                    }
+                }
+                packFile.getFD().sync();
+            } catch (IOException | RuntimeException e) {
+                packFile.setLength(end);
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        debug("pack: %d object(s) packed, %d as delta(s)", newObjects.size(), deltaCount);
+
+        writeIndex(offsets);
+
+        for (File file : looseObjectFiles.values()) {
+            rmObjectFile(file);
+        }
+    }
+
+    /**
+     * Delete the loose object file, and its folder once empty.
+     *
+     * @param file Loose object file
+     */
+    private static void rmObjectFile(File file) {
+        rm(file);
+        File dir = file.getParentFile();
+        String[] remaining = dir.list();
+        if (remaining != null && remaining.length == 0) {
+            rm(dir);
+        }
+    }
+
+    /**
+     * Drop the objects that are not in the set. The unreachable loose objects modified before the time
+     * are deleted, and the other ones are left loose, as they may be written by a command not committed yet.
+     * Packed objects not in the set are dropped regardless of the time, as no running command can have written them.
+     * The pack is rewritten with the packed objects in the set, and the loose objects in the set are appended to it.
+     * <p>
+     * Entry data is copied as it is, except deltas whose base is dropped, which are stored whole.
+     *
+     * @param ids         Set of the SHA1 ids of the objects to keep
+     * @param pruneBefore Milliseconds since the epoch before which unreachable loose objects are deleted
+     */
+    public static void repack(Set<String> ids, long pruneBefore) {
+        int prunedCount = 0;
+        for (Map.Entry<String, File> entry : getLooseObjectFiles().entrySet()) {
+            File file = entry.getValue();
+            if (!ids.contains(entry.getKey()) && file.lastModified() < pruneBefore) {
+                rmObjectFile(file);
+                prunedCount++;
+            }
+        }
+        debug("gc: %d loose object(s) pruned", prunedCount);
+
+        PackFile pack = get();
+        if (pack != null) {
+            pack.rewrite(ids);
+        }
+        packLooseObjects(ids::contains);
+    }
+
+    /**
+     * Write the objects in the set to a new pack and index, and rename them over the current ones.
+     *
+     * @param ids Set of the SHA1 ids of the objects to keep
+     */
+    private void rewrite(Set<String> ids) {
+        SortedMap<String, Long> offsets = new TreeMap<>();
+        int droppedCount = 0;
+        try (RandomAccessFile packFile = new RandomAccessFile(NEW_PACK, "rw")) {
+            packFile.setLength(0);
+            packFile.writeInt(PACK_SIGNATURE);
+            packFile.writeInt(PACK_VERSION);
+            // Bases are always packed before their deltas, so they are copied first.
+            for (int i : getRecordsInPackOrder()) {
+                String id = bytesToHex(idAt(i));
+                if (!ids.contains(id)) {
+                    droppedCount++;
+                    continue;
+                }
+                long offset = offsetAt(i);
+                EntryHeader header = readEntryHeader(offset);
+                long newOffset = packFile.getFilePointer();
+                if (header.type == ENTRY_TYPE_DELTA && !offsets.containsKey(readBaseId(header))) {
+                    writeEntry(packFile, ENTRY_TYPE_WHOLE, readObject(offset));
+                } else {
+                    packFile.writeByte(header.type);
+                    packFile.writeLong(header.length);
+                    transferFully(channel, header.dataOffset, header.length, packFile.getChannel());
+                }
+                offsets.put(id, newOffset);
+            }
+            packFile.getFD().sync();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        writeIndex(offsets, NEW_PACK_INDEX);
+
+        synchronized (PackFile.class) {
+            close();
+            loaded = null;
+            Transaction.move(NEW_PACK, PACK);
+            Transaction.move(NEW_PACK_INDEX, PACK_INDEX);
+        }
+        debug("gc: %d packed object(s) dropped", droppedCount);
+    }
+
+    /**
+     * Finish renaming the new index if the new pack data file was already renamed,
+     * and delete the new files otherwise. A shared index lock is upgraded first.
+     */
+    private static void recoverRepack() {
+        if (!NEW_PACK.exists() && !NEW_PACK_INDEX.exists()) {
+            return;
+        }
+        LockManager.upgradeIndexLock();
+        if (NEW_PACK_INDEX.exists() && !NEW_PACK.exists()) {
+            Transaction.move(NEW_PACK_INDEX, PACK_INDEX);
+            return;
+        }
+        for (File file : new File[]{NEW_PACK, NEW_PACK_INDEX}) {
+            if (file.exists()) {
+                rm(file);
+            }
+        }
+    }
+
+    /**
+     * Write an entry at the file pointer.
+     *
+     * @param packFile Pack data file
+     * @param type     Entry type
+     * @param parts    Entry data in parts
+     */
+    private static void writeEntry(RandomAccessFile packFile, byte type, byte[]... parts) throws IOException {
+        long length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        packFile.writeByte(type);
+        packFile.writeLong(length);
+        for (byte[] part : parts) {
+            packFile.write(part);
+        }
+    }
+
+    /**
+     * Write the loose object as a whole entry at the file pointer.
+     * Objects in the binary object format are transferred between the channels without passing through the heap.
+     *
+     * @param packFile   Pack data file
+     * @param objectFile Loose object file
+     */
+    private static void writeWholeEntry(RandomAccessFile packFile, File objectFile) throws IOException {
+        try (FileChannel in = FileChannel.open(objectFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            in.read(magic, 0);
+            if (isSerialized(magic.array())) {
+                writeEntry(packFile, ENTRY_TYPE_WHOLE, migrateObjectBytes(readContents(objectFile)));
+                return;
+            }
+            long length = in.size();
+            packFile.writeByte(ENTRY_TYPE_WHOLE);
+            packFile.writeLong(length);
+            transferFully(in, 0, length, packFile.getChannel());
+        }
+    }
+
+    /**
+     * Get the packed blobs that can be delta bases, grouped by path in the order they were packed.
+     * The path of a delta is the path of its base, so only the headers of whole blobs are read.
+     *
+     * @return Map with path as key and List of DeltaBase instances without content as value
+     */
+    private Map<String, List<DeltaBase>> getBlobsByPath() {
+        Map<String, String> paths = new HashMap<>();
+        Map<String, Integer> depths = new HashMap<>();
+        Map<String, List<DeltaBase>> blobs = new HashMap<>();
+        for (int i : getRecordsInPackOrder()) {
+            String id = bytesToHex(idAt(i));
+            long offset = offsetAt(i);
+            EntryHeader header = readEntryHeader(offset);
+            String path;
+            int depth;
+            if (header.type == ENTRY_TYPE_DELTA) {
+                String base = readBaseId(header);
+                path = paths.get(base);
+                depth = depths.getOrDefault(base, 0) + 1;
+            } else {
+                InputStream in = new EntryInputStream(header.dataOffset, header.length);
+                path = readDeltaPath(new BufferedInputStream(in));
+                depth = 0;
+            }
+            if (path != null) {
+                paths.put(id, path);
+                depths.put(id, depth);
+                blobs.computeIfAbsent(path, k -> new ArrayList<>()).add(new DeltaBase(id, depth, null));
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Get the positions of the index records in the order of their entries in the pack.
+     *
+     * @return Array of record positions
+     */
+    private int[] getRecordsInPackOrder() {
+        Integer[] records = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = i;
+        }
+        Arrays.sort(records, Comparator.comparingLong(this::offsetAt));
+        int[] positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = records[i];
+        }
+        return positions;
+    }
+
+    /**
+     * Read the SHA1 id of the base of the delta entry.
+     *
+     * @param header Header of the delta entry
+     * @return SHA1 id of the base
+     */
+    private String readBaseId(EntryHeader header) {
+        ByteBuffer baseId = ByteBuffer.allocate(ID_LENGTH);
+        readFully(baseId, header.dataOffset);
+        return bytesToHex(baseId.array());
+    }
+
+    /**
+     * Get the path of the loose object if it is a blob that can be delta compressed.
+     *
+     * @param file Loose object file
+     * @return Path, or null if not a blob or too large
+     */
+    private static String readDeltaPath(File file) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            in.mark(2);
+            boolean isSerialized = isSerialized(in.readNBytes(2));
+            in.reset();
+            if (isSerialized) {
+                return readDeltaPath(new ByteArrayInputStream(migrateObjectBytes(readContents(file))));
+            }
+            return readDeltaPath(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the path of the encoded object if it is a blob that can be delta compressed.
+     *
+     * @param in InputStream of the encoded object that supports mark
+     * @return Path, or null if not a blob or too large
+     */
+    private static String readDeltaPath(InputStream in) {
+        try {
+            in.mark(ObjectWriter.HEADER_LENGTH);
+            byte[] header = in.readNBytes(ObjectWriter.HEADER_LENGTH);
+            in.reset();
+            if (ObjectReader.getType(header) != ObjectWriter.TYPE_BLOB) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        ObjectReader reader = new ObjectReader(in, ObjectWriter.TYPE_BLOB);
+        String path = reader.readString();
+        long contentSize;
+        if (reader.getVersion() < 2) {
+            contentSize = reader.readLength();
+        } else {
+            reader.readByte();
+            contentSize = reader.readVarint();
+        }
+        return contentSize <= MAX_DELTA_CONTENT_SIZE ? path : null;
+    }
+
+    /**
+     * Write the sorted index over the index file.
+     *
+     * @param offsets SortedMap with SHA1 id as key and offset in the pack as value
+     */
+    private static void writeIndex(SortedMap<String, Long> offsets) {
+        writeIndex(offsets, PACK_INDEX);
+    }
+
+    /**
+     * Write the sorted index to a temporary file forced to disk and rename it over the target file,
+     * forcing the pack folder as well, so that the packed objects are found after a crash
+     * once their loose files are deleted.
+     *
+     * @param offsets SortedMap with SHA1 id as key and offset in the pack as value
+     * @param target  Index file to write
+     */
+    private static void writeIndex(SortedMap<String, Long> offsets, File target) {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_LENGTH + offsets.size() * INDEX_RECORD_LENGTH);
+        buffer.putInt(INDEX_SIGNATURE);
+        buffer.putInt(INDEX_VERSION);
+        buffer.putInt(offsets.size());
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            buffer.put(hexToBytes(entry.getKey()));
+            buffer.putLong(entry.getValue());
+        }
+        buffer.flip();
+        Transaction.replace(target, channel -> {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        });
+    }
+
+    /**
+     * Get all loose object files in the objects folder.
+     *
+     * @return SortedMap with SHA1 id as key and File instance as value
+     */
+    private static SortedMap<String, File> getLooseObjectFiles() {
+        SortedMap<String, File> files = new TreeMap<>();
+        File[] objectDirs = Repository.OBJECTS_DIR.listFiles(dir -> dir.isDirectory() && dir.getName().length() == 2);
+        if (objectDirs == null) {
+            return files;
+        }
+        for (File objectDir : objectDirs) {
+            File[] objectFiles = objectDir.listFiles(File::isFile);
+            if (objectFiles == null) {
+                continue;
+            }
+            for (File objectFile : objectFiles) {
+                files.put(objectDir.getName() + objectFile.getName(), objectFile);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Binary search the index for the raw SHA1 id.
+     *
+     * @param key Raw SHA1 id
+     * @return Position of the record, or (-(insertion point) - 1) if not found
+     */
+    private int search(byte[] key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareIdAt(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Compare the raw SHA1 id of the record with the key as unsigned bytes.
+     *
+     * @param i   Position of the record
+     * @param key Raw SHA1 id
+     * @return Comparison result
+     */
+    private int compareIdAt(int i, byte[] key) {
+        int base = INDEX_HEADER_LENGTH + i * INDEX_RECORD_LENGTH;
+        for (int j = 0; j < ID_LENGTH; j++) {
+            int cmp = Integer.compare(index.get(base + j) & 0xff, key[j] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the raw SHA1 id of the record.
+     *
+     * @param i Position of the record
+     * @return Raw SHA1 id
+     */
+    private byte[] idAt(int i) {
+        byte[] id = new byte[ID_LENGTH];
+        index.slice().position(INDEX_HEADER_LENGTH + i * INDEX_RECORD_LENGTH).get(id);
+        return id;
+    }
+
+    /**
+     * Get the offset in the pack of the record.
+     *
+     * @param i Position of the record
+     * @return Offset in the pack
+     */
+    private long offsetAt(int i) {
+        return index.getLong(INDEX_HEADER_LENGTH + i * INDEX_RECORD_LENGTH + ID_LENGTH);
+    }
+
+    /**
+     * Read the object at the offset, applying the delta to its base if needed.
+     *
+     * @param offset Offset in the pack
+     * @return Object content
+     */
+    private byte[] readObject(long offset) {
+        EntryHeader header = readEntryHeader(offset);
+        if (header.length > Integer.MAX_VALUE) {
+            throw error("Object too large to read at once: %d bytes", header.length);
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) header.length);
+        readFully(data, header.dataOffset);
+        if (header.type == ENTRY_TYPE_WHOLE) {
+            return data.array();
+        }
+        if (header.type != ENTRY_TYPE_DELTA) {
+            throw error("Unknown pack entry type: %d", header.type);
+        }
+        String baseId = bytesToHex(Arrays.copyOf(data.array(), ID_LENGTH));
+        byte[] delta = Arrays.copyOfRange(data.array(), ID_LENGTH, data.capacity());
+        return Delta.apply(readDeltaBase(baseId), delta);
+    }
+
+    /**
+     * Get the uncompressed blob to apply a delta to, from the cache or the pack.
+     *
+     * @param id SHA1 id of the base
+     * @return Encoded blob with uncompressed content
+     */
+    private byte[] readDeltaBase(String id) {
+        synchronized (deltaBaseCache) {
+            byte[] cached = deltaBaseCache.get(id);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int i = search(hexToBytes(id));
+        if (i < 0) {
+            throw error("Missing delta base: %s", id);
+        }
+        byte[] base = Blob.decompress(readObject(offsetAt(i)));
+        synchronized (deltaBaseCache) {
+            if (base.length <= DELTA_CACHE_MAX_BYTES && deltaBaseCache.put(id, base) == null) {
+                deltaBaseCacheBytes += base.length;
+                Iterator<byte[]> iterator = deltaBaseCache.values().iterator();
+                while (deltaBaseCacheBytes > DELTA_CACHE_MAX_BYTES && iterator.hasNext()) {
+                    deltaBaseCacheBytes -= iterator.next().length;
+                    iterator.remove();
+                }
+            }
+        }
+        return base;
+    }
+
+    /**
+     * Read the entry header at the offset.
+     *
+     * @param offset Offset in the pack
+     * @return EntryHeader instance
+     */
+    private EntryHeader readEntryHeader(long offset) {
+        boolean isIntLength = packVersion == PACK_VERSION_INT_LENGTH;
+        int headerLength = isIntLength ? ENTRY_HEADER_LENGTH_INT_LENGTH : ENTRY_HEADER_LENGTH;
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        readFully(header, offset);
+        header.flip();
+        byte type = header.get();
+        long length = isIntLength ? header.getInt() : header.getLong();
+        return new EntryHeader(type, length, offset + headerLength);
+    }
+
+    /**
+     * Fill the buffer from the pack at the position.
+     *
+     * @param buffer   ByteBuffer instance
+     * @param position Position in the pack
+     */
+    private void readFully(ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw error("Unexpected end of pack: %s", PACK.getPath());
+                }
+                position += n;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * The type and length of an entry, and where its data starts.
+     */
+    private static class EntryHeader {
+
+        private final byte type;
+
+        private final long length;
+
+        private final long dataOffset;
+
+        EntryHeader(byte type, long length, long dataOffset) {
+            this.type = type;
+            this.length = length;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    /**
+     * A blob that can be the base of a delta.
+     */
+    private static class DeltaBase {
+
+        private final String id;
+
+        /**
+         * Number of deltas to apply to get the blob.
+         */
+        private final int depth;
+
+        /**
+         * Encoded blob with uncompressed content, or null if not read.
+         */
+        private final byte[] content;
+
+        DeltaBase(String id, int depth, byte[] content) {
+            this.id = id;
+            this.depth = depth;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Stream of an entry data read with positional reads,
+     * so that multiple streams can share the pack channel.
+     */
+    private class EntryInputStream extends InputStream {
+
+        private long position;
+
+        private final long end;
+
+        EntryInputStream(long position, long length) {
+            this.position = position;
+            end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            len = (int) Math.min(len, end - position);
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 import static gitlet.MyUtils.*;
 import static gitlet.Utils.*;
@@ -28,12 +35,12 @@ public class Repository {
     /**
      * The current working directory.
      */
-    private static final File CWD = new File(System.getProperty("user.dir"));
+    public static final File CWD = new File(System.getProperty("user.dir"));
 
     /**
      * The .gitlet directory.
      */
-    private static final File GITLET_DIR = join(CWD, ".gitlet");
+    public static final File GITLET_DIR = join(CWD, ".gitlet");
 
     /**
      * The index file.
@@ -61,15 +68,20 @@ public class Repository {
     private static final File BRANCH_HEADS_DIR = join(REFS_DIR, "heads");
 
     /**
-     * Files in the current working directory.
+     * Unreachable loose objects modified within this period are kept by gc, in milliseconds.
      */
-    private static final Lazy<File[]> currentFiles = lazy(() -> CWD.listFiles(File::isFile));
+    private static final long GC_GRACE_PERIOD = Long.getLong("gitlet.gc.gracePeriod", 14L * 24 * 60 * 60) * 1000;
+
+    /**
+     * Files in the current working directory and its subdirectories.
+     */
+    private final Lazy<File[]> currentFiles = lazy(Repository::listWorkingTreeFiles);
 
     /**
      * The current branch name.
      */
     private final Lazy<String> currentBranch = lazy(() -> {
-        String HEADFileContent = readContentsAsString(HEAD);
+        String HEADFileContent = Transaction.readRef(HEAD);
         return HEADFileContent.replace(HEAD_BRANCH_REF_PREFIX, "");
     });
 
@@ -82,10 +94,11 @@ public class Repository {
      * The staging area instance. Initialized in the constructor.
      */
     private final Lazy<StagingArea> stagingArea = lazy(() -> {
+        Transaction.observe(INDEX);
         StagingArea s = INDEX.exists()
             ? StagingArea.fromFile()
             : new StagingArea();
-        s.setTracked(HEADCommit.get().getTracked());
+        s.setHEADCommit(HEADCommit.get());
         return s;
     });
 
@@ -122,41 +135,133 @@ public class Repository {
     }
 
     /**
-     * Print all commit logs ever made.
+     * Print all commit logs ever made, merging the histories of all branches in the order of created date.
+     *
+     * @param filter LogFilter instance
      */
-    public static void globalLog() {
-        StringBuilder logBuilder = new StringBuilder();
+    public static void globalLog(LogFilter filter) {
         // As the project spec goes, the runtime should be O(N) where N is the number of commits ever made.
         // But here I choose to log the commits in the order of created date, which has a runtime of O(NlogN).
-        forEachCommitInOrder(commit -> logBuilder.append(commit.getLog()).append("\n"));
-        System.out.print(logBuilder);
+        CommitGraph graph = CommitGraph.get();
+        BitSet reachedCommits = new BitSet(graph.size());
+        List<CommitWalk> walks = new ArrayList<>();
+        for (String branchHeadCommitId : getBranchHeadCommitIds()) {
+            walks.add(new CommitWalk(graph, graph.indexOf(branchHeadCommitId), reachedCommits));
+        }
+        printLogs(CommitWalk.merge(graph, walks), graph, filter);
     }
 
     /**
      * Print all commits that have the exact message.
+     * Commits are looked up in the message index instead of being read one by one.
      *
      * @param msg Content of the message
      */
     public static void find(String msg) {
+        printFoundCommits(MessageIndex.findMessage(msg));
+    }
+
+    /**
+     * Print all commits whose message contains all the words, ignoring case.
+     *
+     * @param words Words separated by spaces or punctuation
+     */
+    public static void findWords(String words) {
+        printFoundCommits(MessageIndex.findWords(words));
+    }
+
+    /**
+     * Print the ids of the found commits reachable from the branch heads,
+     * in the order the history is walked. Exit with message if there are none.
+     *
+     * @param foundCommits Set of commit graph positions
+     */
+    private static void printFoundCommits(Set<Integer> foundCommits) {
         StringBuilder resultBuilder = new StringBuilder();
-        forEachCommit(commit -> {
-            if (commit.getMessage().equals(msg)) {
-                resultBuilder.append(commit.getId()).append("\n");
-            }
-        });
+        if (!foundCommits.isEmpty()) {
+            CommitGraph graph = CommitGraph.get();
+            Set<Integer> remainingCommits = new HashSet<>(foundCommits);
+            forEachCommitPosition(commit -> {
+                if (remainingCommits.remove(commit)) {
+                    resultBuilder.append(graph.getId(commit)).append("\n");
+                }
+                return !remainingCommits.isEmpty();
+            }, graph, new ArrayDeque<>());
+        }
         if (resultBuilder.length() == 0) {
             exit("Found no commit with that message.");
         }
         System.out.print(resultBuilder);
     }
 
+    /**
+     * Consolidate loose objects into the packfile.
+     */
+    public static void pack() {
+        PackFile.packLooseObjects();
+    }
+
+    /**
+     * Delete the objects that cannot be reached from the branch heads or the staging area,
+     * and repack the reachable ones. Unreachable loose objects are kept for the grace period
+     * set by {@code gitlet.gc.gracePeriod} in seconds (defaults to two weeks).
+     * Unreachable packed objects are dropped at once. Objects are only packed by pack and gc,
+     * which hold the index lock alone like add and commit do, so every packed object was written
+     * by a command that has finished, and one staged by add is reached through the staging area.
+     * The commit graph and the message index are rebuilt from the reachable commits.
+     */
+    public static void gc() {
+        PackFile.repack(getReachableObjectIds(), System.currentTimeMillis() - GC_GRACE_PERIOD);
+        ObjectCache.clear();
+        CommitGraph.build();
+        MessageIndex.rebuild();
+        Transaction.removeTempFiles();
+    }
+
+    /**
+     * Mark the commits, trees, blobs and chunks reachable from the branch heads,
+     * and the blobs added to the staging area.
+     *
+     * @return Set of SHA1 ids
+     */
+    private static Set<String> getReachableObjectIds() {
+        Set<String> reachableIds = new HashSet<>();
+        Set<String> blobIds = new HashSet<>();
+        if (INDEX.exists()) {
+            blobIds.addAll(StagingArea.fromFile().getAdded().values());
+        }
+        Deque<String> treeIds = new ArrayDeque<>();
+        forEachCommit(commit -> {
+            reachableIds.add(commit.getId());
+            if (commit.getTree() == null) {
+                blobIds.addAll(commit.getTracked().values());
+            } else if (reachableIds.add(commit.getTree())) {
+                treeIds.push(commit.getTree());
+            }
+            while (!treeIds.isEmpty()) {
+                for (Tree.Entry entry : Tree.fromFile(treeIds.pop()).getEntries().values()) {
+                    if (!entry.isTree()) {
+                        blobIds.add(entry.getId());
+                    } else if (reachableIds.add(entry.getId())) {
+                        treeIds.push(entry.getId());
+                    }
+                }
+            }
+        });
+        for (String blobId : blobIds) {
+            reachableIds.add(blobId);
+            reachableIds.addAll(Blob.fromFile(blobId).getChunkIds());
+        }
+        return reachableIds;
+    }
+
     /**
      * Set current branch.
      *
      * @param branchName Name of the branch
      */
     private static void setCurrentBranch(String branchName) {
-        writeContents(HEAD, HEAD_BRANCH_REF_PREFIX + branchName);
+        Transaction.write(HEAD, (HEAD_BRANCH_REF_PREFIX + branchName).getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -177,7 +282,7 @@ public class Repository {
      * @return Commit instance
      */
     private static Commit getBranchHeadCommit(File branchHeadFile) {
-        String HEADCommitId = readContentsAsString(branchHeadFile);
+        String HEADCommitId = Transaction.readRef(branchHeadFile);
         return Commit.fromFile(HEADCommitId);
     }
 
@@ -199,7 +304,7 @@ public class Repository {
      * @param commitId       Commit SHA1 id
      */
     private static void setBranchHeadCommit(File branchHeadFile, String commitId) {
-        writeContents(branchHeadFile, commitId);
+        Transaction.write(branchHeadFile, commitId.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -219,18 +324,50 @@ public class Repository {
         Commit initialCommit = new Commit();
         initialCommit.save();
         setBranchHeadCommit(DEFAULT_BRANCH_NAME, initialCommit.getId());
+        addToIndexes(initialCommit);
     }
 
     /**
-     * Iterate all commits in the order of created date
-     * and execute callback function on each of them.
+     * Get the head commit ids of all branches in the order of branch name.
      *
-     * @param cb Function that accepts Commit as a single argument
+     * @return List of commit SHA1 ids
+     */
+    @SuppressWarnings("ConstantConditions")
+    public static List<String> getBranchHeadCommitIds() {
+        File[] branchHeadFiles = BRANCH_HEADS_DIR.listFiles();
+        Arrays.sort(branchHeadFiles, Comparator.comparing(File::getName));
+        List<String> branchHeadCommitIds = new ArrayList<>();
+        for (File branchHeadFile : branchHeadFiles) {
+            branchHeadCommitIds.add(readContentsAsString(branchHeadFile));
+        }
+        return branchHeadCommitIds;
+    }
+
+    /**
+     * Print the logs of the commits as they are walked, reading only the commits printed.
+     * The walk stops at the maximum number of commits or the first commit older than the since limit.
+     *
+     * @param commits Iterator of commit graph positions, newest first
+     * @param graph   CommitGraph instance
+     * @param filter  LogFilter instance
      */
-    private static void forEachCommitInOrder(Consumer<Commit> cb) {
-        Comparator<Commit> commitComparator = Comparator.comparing(Commit::getDate).reversed();
-        Queue<Commit> commitsPriorityQueue = new PriorityQueue<>(commitComparator);
-        forEachCommit(cb, commitsPriorityQueue);
+    private static void printLogs(PrimitiveIterator.OfInt commits, CommitGraph graph, LogFilter filter) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out));
+        int count = 0;
+        while (count < filter.getMaxCount() && commits.hasNext()) {
+            int commit = commits.nextInt();
+            long date = graph.getDate(commit);
+            if (filter.isTooOld(date)) {
+                break;
+            }
+            if (filter.isTooNew(date)) {
+                continue;
+            }
+            out.print(Commit.fromFile(graph.getId(commit)).getLog());
+            out.print("\n");
+            count++;
+        }
+        out.flush();
     }
 
     /**
@@ -239,49 +376,89 @@ public class Repository {
      * @param cb Function that accepts Commit as a single argument
      */
     private static void forEachCommit(Consumer<Commit> cb) {
-        Queue<Commit> commitsQueue = new ArrayDeque<>();
-        forEachCommit(cb, commitsQueue);
+        Queue<Integer> commitsQueue = new ArrayDeque<>();
+        forEachCommit(cb, CommitGraph.get(), commitsQueue);
     }
 
     /**
      * Helper method to iterate all commits.
+     * The history is walked on the commit graph, and only visited commits are read.
      *
      * @param cb                 Callback function executed on the current commit
-     * @param queueToHoldCommits New Queue instance to hold the commits while iterating
+     * @param graph              CommitGraph instance
+     * @param queueToHoldCommits New Queue instance to hold the commit graph positions while iterating
      */
-    @SuppressWarnings("ConstantConditions")
-    private static void forEachCommit(Consumer<Commit> cb, Queue<Commit> queueToHoldCommits) {
-        Set<String> checkedCommitIds = new HashSet<>();
+    private static void forEachCommit(Consumer<Commit> cb, CommitGraph graph, Queue<Integer> queueToHoldCommits) {
+        forEachCommitPosition(commit -> {
+            cb.accept(Commit.fromFile(graph.getId(commit)));
+            return true;
+        }, graph, queueToHoldCommits);
+    }
 
-        File[] branchHeadFiles = BRANCH_HEADS_DIR.listFiles();
-        Arrays.sort(branchHeadFiles, Comparator.comparing(File::getName));
+    /**
+     * Helper method to iterate the commit graph positions of all commits without reading the commits.
+     *
+     * @param cb                 Callback function executed on the current position, which returns false to stop
+     * @param graph              CommitGraph instance
+     * @param queueToHoldCommits New Queue instance to hold the commit graph positions while iterating
+     */
+    private static void forEachCommitPosition(IntPredicate cb, CommitGraph graph, Queue<Integer> queueToHoldCommits) {
+        Set<Integer> checkedCommits = new HashSet<>();
 
-        for (File branchHeadFile : branchHeadFiles) {
-            String branchHeadCommitId = readContentsAsString(branchHeadFile);
-            if (checkedCommitIds.contains(branchHeadCommitId)) {
-                continue;
+        for (String branchHeadCommitId : getBranchHeadCommitIds()) {
+            int branchHeadCommit = graph.indexOf(branchHeadCommitId);
+            if (checkedCommits.add(branchHeadCommit)) {
+                queueToHoldCommits.add(branchHeadCommit);
             }
-            checkedCommitIds.add(branchHeadCommitId);
-            Commit branchHeadCommit = Commit.fromFile(branchHeadCommitId);
-            queueToHoldCommits.add(branchHeadCommit);
         }
 
-        while (true) {
-            Commit nextCommit = queueToHoldCommits.poll();
-            cb.accept(nextCommit);
-            List<String> parentCommitIds = nextCommit.getParents();
-            if (parentCommitIds.size() == 0) {
-                break;
+        while (!queueToHoldCommits.isEmpty()) {
+            int nextCommit = queueToHoldCommits.poll();
+            if (!cb.test(nextCommit)) {
+                return;
+            }
+            for (int parentCommit : graph.getParents(nextCommit)) {
+                if (checkedCommits.add(parentCommit)) {
+                    queueToHoldCommits.add(parentCommit);
+                }
             }
-            for (String parentCommitId : parentCommitIds) {
-                if (checkedCommitIds.contains(parentCommitId)) {
-                    continue;
+        }
+    }
+
+    /**
+     * Get all files in the current working directory, walking into subdirectories
+     * except the .gitlet directory and symbolic links to directories.
+     *
+     * @return Array of File instances
+     */
+    private static File[] listWorkingTreeFiles() {
+        List<File> files = new ArrayList<>();
+        Deque<File> dirs = new ArrayDeque<>();
+        dirs.push(CWD);
+        while (!dirs.isEmpty()) {
+            File[] children = dirs.pop().listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (child.isFile()) {
+                    files.add(child);
+                } else if (child.isDirectory() && !child.equals(GITLET_DIR) && !Files.isSymbolicLink(child.toPath())) {
+                    dirs.push(child);
                 }
-                checkedCommitIds.add(parentCommitId);
-                Commit parentCommit = Commit.fromFile(parentCommitId);
-                queueToHoldCommits.add(parentCommit);
             }
         }
+        return files.toArray(new File[0]);
+    }
+
+    /**
+     * Get the path of the file relative to CWD.
+     *
+     * @param filePath Path of the file
+     * @return Relative path
+     */
+    private static String getRelativePath(String filePath) {
+        return CWD.toPath().relativize(Paths.get(filePath)).toString();
     }
 
     /**
@@ -296,21 +473,6 @@ public class Repository {
             : join(CWD, fileName);
     }
 
-    /**
-     * Get a Map of file paths and their SHA1 id from CWD.
-     *
-     * @return Map with file path as key and SHA1 id as value
-     */
-    private static Map<String, String> getCurrentFilesMap() {
-        Map<String, String> filesMap = new HashMap<>();
-        for (File file : currentFiles.get()) {
-            String filePath = file.getPath();
-            String blobId = Blob.generateId(file);
-            filesMap.put(filePath, blobId);
-        }
-        return filesMap;
-    }
-
     /**
      * Append lines of file name in order from files paths Set to StringBuilder.
      *
@@ -323,7 +485,7 @@ public class Repository {
     }
 
     /**
-     * Append lines of file name in order from files paths Set to StringBuilder.
+     * Append lines of file path relative to CWD in order from files paths Set to StringBuilder.
      *
      * @param stringBuilder StringBuilder instance
      * @param filePathsList List of file paths
@@ -331,47 +493,41 @@ public class Repository {
     private static void appendFileNamesInOrder(StringBuilder stringBuilder, List<String> filePathsList) {
         filePathsList.sort(String::compareTo);
         for (String filePath : filePathsList) {
-            String fileName = Paths.get(filePath).getFileName().toString();
-            stringBuilder.append(fileName).append("\n");
+            stringBuilder.append(getRelativePath(filePath)).append("\n");
         }
     }
 
     /**
      * Get the whole commit id. Exit with message if it does not exist.
+     * Abbreviated ids are looked up in the sorted ids of the commit graph,
+     * and only if not found there, among the objects, which covers commits missing from the graph,
+     * such as those unreachable when the graph was built for a repository in the legacy format.
      *
      * @param commitId Abbreviate or Whole commit SHA1 id
      * @return Whole commit SHA1 id
      */
-    @SuppressWarnings("ConstantConditions")
     private static String getActualCommitId(String commitId) {
         if (commitId.length() < UID_LENGTH) {
             if (commitId.length() < 4) {
                 exit("Commit id should contain at least 4 characters.");
             }
-            String objectDirName = getObjectDirName(commitId);
-            File objectDir = join(OBJECTS_DIR, objectDirName);
-            if (!objectDir.exists()) {
+
+            if (!commitId.matches("[0-9a-f]+")) {
                 exit("No commit with that id exists.");
             }
-
-            boolean isFound = false;
-            String objectFileNamePrefix = getObjectFileName(commitId);
-
-            for (File objectFile : objectDir.listFiles()) {
-                String objectFileName = objectFile.getName();
-                if (objectFileName.startsWith(objectFileNamePrefix) && isFileInstanceOf(objectFile, Commit.class)) {
-                    if (isFound) {
-                        exit("More than 1 commit has the same id prefix.");
-                    }
-                    commitId = objectDirName + objectFileName;
-                    isFound = true;
-                }
+            List<String> candidateIds = CommitGraph.get().findByPrefix(commitId);
+            if (candidateIds.isEmpty()) {
+                candidateIds = findCommitIdsInObjects(commitId);
             }
-            if (!isFound) {
+            if (candidateIds.size() > 1) {
+                exit("More than 1 commit has the same id prefix.");
+            }
+            if (candidateIds.isEmpty()) {
                 exit("No commit with that id exists.");
             }
+            commitId = candidateIds.get(0);
         } else {
-            if (!getObjectFile(commitId).exists()) {
+            if (!CommitGraph.get().contains(commitId) && getObjectType(commitId) != ObjectWriter.TYPE_COMMIT) {
                 exit("No commit with that id exists.");
             }
         }
@@ -379,53 +535,102 @@ public class Repository {
     }
 
     /**
-     * Get the id of the latest common ancestor of the two commits.
+     * Get the commits whose SHA1 id starts with the prefix among the packed and loose objects.
+     * Only the headers of the candidate objects are read.
+     *
+     * @param prefix Abbreviated SHA1 id
+     * @return List of commit SHA1 ids
+     */
+    private static List<String> findCommitIdsInObjects(String prefix) {
+        Set<String> candidateIds = new TreeSet<>(PackFile.findByPrefix(prefix));
+        String objectDirName = getObjectDirName(prefix);
+        File objectDir = join(OBJECTS_DIR, objectDirName);
+        String objectFileNamePrefix = getObjectFileName(prefix);
+        File[] objectFiles = objectDir.listFiles(file -> file.getName().startsWith(objectFileNamePrefix));
+        if (objectFiles != null) {
+            for (File objectFile : objectFiles) {
+                candidateIds.add(objectDirName + objectFile.getName());
+            }
+        }
+        List<String> commitIds = new ArrayList<>();
+        for (String candidateId : candidateIds) {
+            if (getObjectType(candidateId) == ObjectWriter.TYPE_COMMIT) {
+                commitIds.add(candidateId);
+            }
+        }
+        return commitIds;
+    }
+
+    /**
+     * Get the latest common ancestor of the two commits.
+     * If there are more than one best common ancestor, as in criss-cross merges,
+     * the one created last is chosen.
      *
      * @param commitA Commit instance
      * @param commitB Commit instance
-     * @return Commit SHA1 id
+     * @return Commit instance
      */
-    @SuppressWarnings("ConstantConditions")
     private static Commit getLatestCommonAncestorCommit(Commit commitA, Commit commitB) {
-        Comparator<Commit> commitComparator = Comparator.comparing(Commit::getDate).reversed();
-        Queue<Commit> commitsQueue = new PriorityQueue<>(commitComparator);
-        commitsQueue.add(commitA);
-        commitsQueue.add(commitB);
-        Set<String> checkedCommitIds = new HashSet<>();
-        while (true) {
-            Commit latestCommit = commitsQueue.poll();
-            List<String> parentCommitIds = latestCommit.getParents();
-            String firstParentCommitId = parentCommitIds.get(0);
-            Commit firstParentCommit = Commit.fromFile(firstParentCommitId);
-            if (checkedCommitIds.contains(firstParentCommitId)) {
-                return firstParentCommit;
-            }
-            commitsQueue.add(firstParentCommit);
-            checkedCommitIds.add(firstParentCommitId);
-        }
+        CommitGraph graph = CommitGraph.get();
+        MergeBase mergeBase = new MergeBase(graph);
+        List<Integer> bestCommonAncestors =
+            mergeBase.compute(graph.indexOf(commitA.getId()), graph.indexOf(commitB.getId()));
+        debug("merge-base: %d best common ancestor(s), %d commit(s) visited",
+            bestCommonAncestors.size(), mergeBase.getVisitedCount());
+        return Commit.fromFile(graph.getId(bestCommonAncestors.get(0)));
     }
 
     /**
-     * Merge the conflicted blob content and return a new String.
+     * Merge the blob content line by line against the common ancestor.
      *
-     * @param currentBlobId Current Blob SHA1 id
-     * @param targetBlobId  Target Blob SHA1 id
-     * @return New content
+     * @param baseBlobId    Blob SHA1 id in the common ancestor, or null
+     * @param currentBlobId Current Blob SHA1 id, or null
+     * @param targetBlobId  Target Blob SHA1 id, or null
+     * @return LineMerge.Result instance
      */
-    private static String getConflictContent(String currentBlobId, String targetBlobId) {
-        StringBuilder contentBuilder = new StringBuilder();
-        contentBuilder.append("<<<<<<< HEAD").append("\n");
-        if (currentBlobId != null) {
-            Blob currentBlob = Blob.fromFile(currentBlobId);
-            contentBuilder.append(currentBlob.getContentAsString());
-        }
-        contentBuilder.append("=======").append("\n");
-        if (targetBlobId != null) {
-            Blob targetBlob = Blob.fromFile(targetBlobId);
-            contentBuilder.append(targetBlob.getContentAsString());
+    private static LineMerge.Result mergeContent(String baseBlobId, String currentBlobId, String targetBlobId) {
+        return LineMerge.merge(getContentAsString(baseBlobId),
+            getContentAsString(currentBlobId), getContentAsString(targetBlobId));
+    }
+
+    /**
+     * Get the blob content as String.
+     *
+     * @param blobId Blob SHA1 id, or null
+     * @return Blob content, or null if the id is null
+     */
+    private static String getContentAsString(String blobId) {
+        return blobId == null ? null : Blob.fromFile(blobId).getContentAsString();
+    }
+
+    /**
+     * Get a Map of file paths and their SHA1 id from CWD.
+     * Files are only re-hashed if their stat data differs from the index,
+     * and the index is saved if the stat cache changed.
+     *
+     * @return Map with file path as key and SHA1 id as value
+     */
+    private Map<String, String> getCurrentFilesMap() {
+        Map<String, String> filesMap = stagingArea.get().getBlobIds(currentFiles.get());
+        if (stagingArea.get().isStatsChanged()) {
+            stagingArea.get().save();
         }
-        contentBuilder.append(">>>>>>>");
-        return contentBuilder.toString();
+        return filesMap;
+    }
+
+    /**
+     * Get a Map of the files in CWD that are tracked by HEAD commit or staged for addition,
+     * and not staged for removal.
+     *
+     * @return Map with file path as key and SHA1 id as value
+     */
+    private Map<String, String> getWorkingTreeTrackedFilesMap() {
+        Set<String> trackedFilePaths = new HashSet<>(HEADCommit.get().getTracked().keySet());
+        trackedFilePaths.addAll(stagingArea.get().getAdded().keySet());
+        trackedFilePaths.removeAll(stagingArea.get().getRemoved());
+        Map<String, String> filesMap = getCurrentFilesMap();
+        filesMap.keySet().retainAll(trackedFilePaths);
+        return filesMap;
     }
 
     /**
@@ -462,16 +667,38 @@ public class Repository {
         if (stagingArea.get().isClean()) {
             exit("No changes added to the commit.");
         }
-        Map<String, String> newTrackedFilesMap = stagingArea.get().commit();
+        Map<String, String> stagedChanges = stagingArea.get().commit();
         stagingArea.get().save();
         List<String> parents = new ArrayList<>();
         parents.add(HEADCommit.get().getId());
         if (secondParent != null) {
             parents.add(secondParent);
         }
-        Commit newCommit = new Commit(msg, parents, newTrackedFilesMap);
+        String treeId = HEADCommit.get().getTree();
+        if (treeId == null) {
+            // The first commit on top of a commit of the legacy formats writes the whole tree.
+            Map<String, String> trackedFilesMap = new HashMap<>(HEADCommit.get().getTracked());
+            trackedFilesMap.putAll(stagedChanges);
+            stagedChanges = trackedFilesMap;
+        }
+        Commit newCommit = new Commit(msg, parents, Tree.update(treeId, CWD, stagedChanges));
         newCommit.save();
         setBranchHeadCommit(currentBranch.get(), newCommit.getId());
+        addToIndexes(newCommit);
+    }
+
+    /**
+     * Add the commit to the commit graph and the message index once the branch head is written,
+     * so that they are left untouched if another process updated the branch first.
+     * A commit missing from them after a crash is added the next time it is looked up.
+     *
+     * @param commit Commit instance
+     */
+    private static void addToIndexes(Commit commit) {
+        Transaction.afterCommit(() -> {
+            CommitGraph.get().add(commit);
+            MessageIndex.update();
+        });
     }
 
     /**
@@ -489,21 +716,116 @@ public class Repository {
     }
 
     /**
-     * Print log of the current branch.
+     * Print log of the current branch, following the first parents.
+     *
+     * @param filter LogFilter instance
      */
-    public void log() {
-        StringBuilder logBuilder = new StringBuilder();
-        Commit currentCommit = HEADCommit.get();
-        while (true) {
-            logBuilder.append(currentCommit.getLog()).append("\n");
-            List<String> parentCommitIds = currentCommit.getParents();
-            if (parentCommitIds.size() == 0) {
-                break;
+    public void log(LogFilter filter) {
+        CommitGraph graph = CommitGraph.get();
+        int headCommit = graph.indexOf(HEADCommit.get().getId());
+        PrimitiveIterator.OfInt commits = new PrimitiveIterator.OfInt() {
+            private int currentCommit = headCommit;
+
+            @Override
+            public boolean hasNext() {
+                return currentCommit != CommitGraph.NONE;
+            }
+
+            @Override
+            public int nextInt() {
+                int commit = currentCommit;
+                currentCommit = graph.getFirstParent(commit);
+                return commit;
             }
-            String firstParentCommitId = parentCommitIds.get(0);
-            currentCommit = Commit.fromFile(firstParentCommitId);
+        };
+        printLogs(commits, graph, filter);
+    }
+
+    /**
+     * Print the differences in the unified format from the commit to the working directory,
+     * or between the two commits.
+     * Only the changed files are read, and the unchanged subtrees of the commits are skipped.
+     *
+     * @param fromCommitId Commit SHA1 id, or null for HEAD commit
+     * @param toCommitId   Commit SHA1 id, or null for the working directory
+     */
+    public void diff(String fromCommitId, String toCommitId) {
+        Commit fromCommit = fromCommitId == null
+            ? HEADCommit.get()
+            : Commit.fromFile(getActualCommitId(fromCommitId));
+        Map<String, String> toBlobIds;
+        Map<String, String> fromBlobIds;
+        boolean isToWorkingTree = toCommitId == null;
+        if (isToWorkingTree) {
+            Map<String, String> workingTreeFilesMap = getWorkingTreeTrackedFilesMap();
+            Map<String, String> fromCommitFilesMap = fromCommit.getTracked();
+            toBlobIds = TreeDiff.diff(fromCommitFilesMap, workingTreeFilesMap);
+            fromBlobIds = TreeDiff.diff(workingTreeFilesMap, fromCommitFilesMap);
+        } else {
+            Commit toCommit = Commit.fromFile(getActualCommitId(toCommitId));
+            toBlobIds = TreeDiff.diff(fromCommit, toCommit);
+            // The reverse changes hold the Blob SHA1 ids in the first commit.
+            fromBlobIds = TreeDiff.diff(toCommit, fromCommit);
+        }
+
+        List<String> filePaths = new ArrayList<>(toBlobIds.keySet());
+        filePaths.sort(String::compareTo);
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out));
+        for (String filePath : filePaths) {
+            String fromBlobId = fromBlobIds.get(filePath);
+            String toBlobId = toBlobIds.get(filePath);
+            UnifiedDiff.Source from = fromBlobId == null ? null : getBlobSource(fromBlobId);
+            UnifiedDiff.Source to;
+            if (toBlobId == null) {
+                to = null;
+            } else if (isToWorkingTree) {
+                to = getFileSource(filePath);
+            } else {
+                to = getBlobSource(toBlobId);
+            }
+            UnifiedDiff.print(out, getRelativePath(filePath), from, to);
         }
-        System.out.print(logBuilder);
+        out.flush();
+    }
+
+    /**
+     * Get the content of the blob as the source of a diff.
+     *
+     * @param blobId Blob SHA1 id
+     * @return UnifiedDiff.Source instance
+     */
+    private static UnifiedDiff.Source getBlobSource(String blobId) {
+        return new UnifiedDiff.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return Blob.fromFile(blobId).openContent();
+            }
+
+            @Override
+            public long size() {
+                return Blob.fromFile(blobId).getSize();
+            }
+        };
+    }
+
+    /**
+     * Get the content of the file in the working directory as the source of a diff.
+     *
+     * @param filePath Path of the file
+     * @return UnifiedDiff.Source instance
+     */
+    private static UnifiedDiff.Source getFileSource(String filePath) {
+        return new UnifiedDiff.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return Files.newInputStream(Paths.get(filePath));
+            }
+
+            @Override
+            public long size() throws IOException {
+                return Files.size(Paths.get(filePath));
+            }
+        };
     }
 
     /**
@@ -545,7 +867,7 @@ public class Repository {
         Set<String> deletedNotStageFilePaths = new HashSet<>();
 
         Map<String, String> currentFilesMap = getCurrentFilesMap();
-        Map<String, String> trackedFilesMap = HEADCommit.get().getTracked();
+        Map<String, String> trackedFilesMap = new HashMap<>(HEADCommit.get().getTracked());
 
         trackedFilesMap.putAll(addedFilesMap);
         for (String filePath : removedFilePathsSet) {
@@ -576,8 +898,7 @@ public class Repository {
         modifiedNotStageFilePaths.sort(String::compareTo);
 
         for (String filePath : modifiedNotStageFilePaths) {
-            String fileName = Paths.get(filePath).getFileName().toString();
-            statusBuilder.append(fileName);
+            statusBuilder.append(getRelativePath(filePath));
             if (deletedNotStageFilePaths.contains(filePath)) {
                 statusBuilder.append(" ").append("(deleted)");
             } else {
@@ -630,7 +951,7 @@ public class Repository {
      */
     public void checkoutBranch(String targetBranchName) {
         File targetBranchHeadFile = getBranchHeadFile(targetBranchName);
-        if (!targetBranchHeadFile.exists()) {
+        if (Transaction.readRef(targetBranchHeadFile) == null) {
             exit("No such branch exists.");
         }
         if (targetBranchName.equals(currentBranch.get())) {
@@ -644,16 +965,15 @@ public class Repository {
 
     /**
      * Checkout to specific commit.
+     * Only the files that differ between the working directory and the target commit are touched.
      *
      * @param targetCommit Commit instance
      */
     private void checkoutCommit(Commit targetCommit) {
+        Map<String, String> changes = TreeDiff.diff(getCurrentFilesMap(), targetCommit.getTracked());
+        Checkout.apply(changes);
         stagingArea.get().clear();
         stagingArea.get().save();
-        for (File file : currentFiles.get()) {
-            rm(file);
-        }
-        targetCommit.restoreAllTracked();
     }
 
     /**
@@ -699,7 +1019,7 @@ public class Repository {
      */
     public void branch(String newBranchName) {
         File newBranchHeadFile = getBranchHeadFile(newBranchName);
-        if (newBranchHeadFile.exists()) {
+        if (Transaction.readRef(newBranchHeadFile) != null) {
             exit("A branch with that name already exists.");
         }
         setBranchHeadCommit(newBranchHeadFile, HEADCommit.get().getId());
@@ -712,13 +1032,13 @@ public class Repository {
      */
     public void rmBranch(String targetBranchName) {
         File targetBranchHeadFile = getBranchHeadFile(targetBranchName);
-        if (!targetBranchHeadFile.exists()) {
+        if (Transaction.readRef(targetBranchHeadFile) == null) {
             exit("A branch with that name does not exist.");
         }
         if (targetBranchName.equals(currentBranch.get())) {
             exit("Cannot remove the current branch.");
         }
-        rm(targetBranchHeadFile);
+        Transaction.delete(targetBranchHeadFile);
     }
 
     /**
@@ -741,7 +1061,7 @@ public class Repository {
      */
     public void merge(String targetBranchName) {
         File targetBranchHeadFile = getBranchHeadFile(targetBranchName);
-        if (!targetBranchHeadFile.exists()) {
+        if (Transaction.readRef(targetBranchHeadFile) == null) {
             exit("A branch with that name does not exist.");
         }
         if (targetBranchName.equals(currentBranch.get())) {
@@ -767,86 +1087,42 @@ public class Repository {
 
         boolean hasConflict = false;
 
-        Map<String, String> HEADCommitTrackedFilesMap = new HashMap<>(HEADCommit.get().getTracked());
-        Map<String, String> targetBranchHeadCommitTrackedFilesMap = targetBranchHeadCommit.getTracked();
-        Map<String, String> lcaCommitTrackedFilesMap = lcaCommit.getTracked();
+        // Only the files changed since the common ancestor in either branch need to be merged.
+        Map<String, String> HEADCommitChanges = TreeDiff.diff(lcaCommit, HEADCommit.get());
+        Map<String, String> targetBranchHeadCommitChanges = TreeDiff.diff(lcaCommit, targetBranchHeadCommit);
 
-        for (Map.Entry<String, String> entry : lcaCommitTrackedFilesMap.entrySet()) {
+        for (Map.Entry<String, String> entry : targetBranchHeadCommitChanges.entrySet()) {
             String filePath = entry.getKey();
             File file = new File(filePath);
-            String blobId = entry.getValue();
-
-            String targetBranchHeadCommitBlobId = targetBranchHeadCommitTrackedFilesMap.get(filePath);
-            String HEADCommitBlobId = HEADCommitTrackedFilesMap.get(filePath);
-
-            if (targetBranchHeadCommitBlobId != null) { // exists in the target branch
-                if (!targetBranchHeadCommitBlobId.equals(blobId)) { // modified in the target branch
-                    if (HEADCommitBlobId != null) { // exists in the current branch
-                        if (HEADCommitBlobId.equals(blobId)) { // not modified in the current branch
-                            // case 1
-                            Blob.fromFile(targetBranchHeadCommitBlobId).writeContentToSource();
-                            stagingArea.get().add(file);
-                        } else { // modified in the current branch
-                            if (!HEADCommitBlobId.equals(targetBranchHeadCommitBlobId)) { // modified in different ways
-                                // case 8
-                                hasConflict = true;
-                                String conflictContent = getConflictContent(HEADCommitBlobId, targetBranchHeadCommitBlobId);
-                                writeContents(file, conflictContent);
-                                stagingArea.get().add(file);
-                            } // else modified in the same ways
-                            // case 3
-                        }
-                    } else { // deleted in current branch
-                        // case 8
-                        hasConflict = true;
-                        String conflictContent = getConflictContent(null, targetBranchHeadCommitBlobId);
-                        writeContents(file, conflictContent);
-                        stagingArea.get().add(file);
-                    }
-                } // else not modified in the target branch
-                // case 2, case 7
-            } else { // deleted in the target branch
-                if (HEADCommitBlobId != null) { // exists in the current branch
-                    if (HEADCommitBlobId.equals(blobId)) { // not modified in the current branch
-                        // case 6
-                        stagingArea.get().remove(file);
-                    } else { // modified in the current branch
-                        // case 8
-                        hasConflict = true;
-                        String conflictContent = getConflictContent(HEADCommitBlobId, null);
-                        writeContents(file, conflictContent);
-                        stagingArea.get().add(file);
-                    }
-                } // else deleted in both branches
-                // case 3
-            }
-
-            HEADCommitTrackedFilesMap.remove(filePath);
-            targetBranchHeadCommitTrackedFilesMap.remove(filePath);
-        }
-
-        for (Map.Entry<String, String> entry : targetBranchHeadCommitTrackedFilesMap.entrySet()) {
-            String targetBranchHeadCommitFilePath = entry.getKey();
-            File targetBranchHeadCommitFile = new File(targetBranchHeadCommitFilePath);
             String targetBranchHeadCommitBlobId = entry.getValue();
 
-            String HEADCommitBlobId = HEADCommitTrackedFilesMap.get(targetBranchHeadCommitFilePath);
-
-            if (HEADCommitBlobId != null) { // added in both branches
-                if (!HEADCommitBlobId.equals(targetBranchHeadCommitBlobId)) { // modified in different ways
-                    // case 8
-                    hasConflict = true;
-                    String conflictContent = getConflictContent(HEADCommitBlobId, targetBranchHeadCommitBlobId);
-                    writeContents(targetBranchHeadCommitFile, conflictContent);
-                    stagingArea.get().add(targetBranchHeadCommitFile);
-                } // else modified in the same ways
-                // case 3
-            } else { // only added in the target branch
-                // case 5
-                Blob.fromFile(targetBranchHeadCommitBlobId).writeContentToSource();
-                stagingArea.get().add(targetBranchHeadCommitFile);
+            if (!HEADCommitChanges.containsKey(filePath)) { // not modified in the current branch
+                if (targetBranchHeadCommitBlobId != null) {
+                    // case 1, case 5
+                    Blob.fromFile(targetBranchHeadCommitBlobId).writeContentToSource();
+                    stagingArea.get().add(file);
+                } else {
+                    // case 6
+                    stagingArea.get().remove(file);
+                }
+                continue;
             }
+
+            String HEADCommitBlobId = HEADCommitChanges.get(filePath);
+            if (!Objects.equals(HEADCommitBlobId, targetBranchHeadCommitBlobId)) { // modified in different ways
+                // case 8, where changes to different lines of the file are merged without conflict
+                String baseBlobId = lcaCommit.getTrackedBlobId(filePath);
+                LineMerge.Result mergeResult =
+                    mergeContent(baseBlobId, HEADCommitBlobId, targetBranchHeadCommitBlobId);
+                hasConflict |= mergeResult.hasConflict();
+                mkdirParent(file);
+                writeContents(file, mergeResult.getContent());
+                stagingArea.get().add(file);
+            } // else modified in the same ways
+            // case 3
         }
+        // Files only modified in the current branch are kept as they are.
+        // case 2, case 4, case 7
 
         String newCommitMessage = "Merged" + " " + targetBranchName + " " + "into" + " " + currentBranch.get() + ".";
         commit(newCommitMessage, targetBranchHeadCommit.getId());
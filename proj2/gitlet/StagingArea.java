@@ -1,15 +1,17 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+import static gitlet.MyUtils.objectExists;
 import static gitlet.MyUtils.rm;
 import static gitlet.Utils.readObject;
-import static gitlet.Utils.writeObject;
+import static gitlet.Utils.serialize;
 
 /**
  * The staging area representation.
@@ -18,6 +20,30 @@ import static gitlet.Utils.writeObject;
  */
 public class StagingArea implements Serializable {
 
+    /**
+     * Kept so that index files saved before the stat cache was added can still be read.
+     */
+    private static final long serialVersionUID = -6306753507977414536L;
+
+    /**
+     * Files modified within this window before the index was saved are always re-hashed,
+     * since a later modification may not change their size or modification time.
+     */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    /**
+     * The instance last read from or saved to the file INDEX by this process,
+     * kept so that a long-running daemon does not read the index again for every command.
+     * Commands only get copies of it, so that changes they do not save never reach it.
+     */
+    private static StagingArea cached;
+
+    /**
+     * The stat data of the file INDEX when the cached instance was read or saved,
+     * including its file key, so that an index replaced with the same size and time is read again.
+     */
+    private static String cachedIndexStat;
+
     /**
      * The added files Map with file path as key and SHA1 id as value.
      */
@@ -29,24 +55,171 @@ public class StagingArea implements Serializable {
     private final Set<String> removed = new HashSet<>();
 
     /**
-     * The tracked files Map with file path as key and SHA1 id as value.
+     * The commit the staged changes apply to, whose tree the tracked files are looked up in.
      */
-    private transient Map<String, String> tracked;
+    private transient Commit HEADCommit;
+
+    /**
+     * The stat cache Map with file path as key and the stat data of the last hashed file as value.
+     * Null if read from an index file saved before the stat cache was added.
+     */
+    private Map<String, StatEntry> stats = new HashMap<>();
+
+    /**
+     * The last modified time of the index file when read, in milliseconds.
+     */
+    private transient long indexLastModified;
+
+    /**
+     * Whether the stat cache has changed since read.
+     */
+    private transient boolean statsChanged;
 
     /**
      * Get a StagingArea instance from the file INDEX.
+     * The instance is a copy of the cached one, which is only replaced once a copy is saved.
      *
      * @return StagingArea instance
      */
-    public static StagingArea fromFile() {
-        return readObject(Repository.INDEX, StagingArea.class);
+    public static synchronized StagingArea fromFile() {
+        if (cached != null && Objects.equals(cachedIndexStat, Transaction.getStat(Repository.INDEX))) {
+            return cached.copy();
+        }
+        StagingArea stagingArea = readObject(Repository.INDEX, StagingArea.class);
+        stagingArea.indexLastModified = Repository.INDEX.lastModified();
+        if (stagingArea.stats == null) {
+            stagingArea.stats = new HashMap<>();
+        }
+        stagingArea.cache();
+        return stagingArea.copy();
     }
 
     /**
-     * Save this instance to the file INDEX.
+     * Copy the staged files and the stat cache. The stat entries are shared, as they never change.
+     *
+     * @return StagingArea instance
+     */
+    private StagingArea copy() {
+        StagingArea copy = new StagingArea();
+        copy.added.putAll(added);
+        copy.removed.addAll(removed);
+        copy.stats = new HashMap<>(stats);
+        copy.indexLastModified = indexLastModified;
+        return copy;
+    }
+
+    /**
+     * Save this instance to the file INDEX, and cache it once written.
      */
     public void save() {
-        writeObject(Repository.INDEX, this);
+        Transaction.write(Repository.INDEX, serialize(this), () -> {
+            indexLastModified = Repository.INDEX.lastModified();
+            cache();
+        });
+        statsChanged = false;
+    }
+
+    /**
+     * Cache this instance with the stat data of the file INDEX.
+     */
+    private void cache() {
+        synchronized (StagingArea.class) {
+            cached = this;
+            cachedIndexStat = Transaction.getStat(Repository.INDEX);
+        }
+    }
+
+    /**
+     * Tells whether the stat cache has changed since read or saved.
+     *
+     * @return true if should be saved
+     */
+    public boolean isStatsChanged() {
+        return statsChanged;
+    }
+
+    /**
+     * Get the Blob SHA1 id of the file.
+     * The file is only read and hashed if its stat data differs from the cached one.
+     *
+     * @param file File instance
+     * @return SHA1 id
+     */
+    public String getBlobId(File file) {
+        StatEntry stat = StatEntry.of(file);
+        String cachedBlobId = getCachedBlobId(file, stat);
+        if (cachedBlobId != null) {
+            return cachedBlobId;
+        }
+        String blobId = FileHasher.hash(file);
+        cacheStat(file, stat, blobId);
+        return blobId;
+    }
+
+    /**
+     * Get a Map of file paths and their Blob SHA1 id,
+     * dropping the cached stat data of files not in the array.
+     * Files whose stat data changed are hashed in parallel.
+     *
+     * @param files Array of all the files in the working directory
+     * @return Map with file path as key and SHA1 id as value
+     */
+    public Map<String, String> getBlobIds(File[] files) {
+        Map<String, String> filesMap = new HashMap<>();
+        Map<File, StatEntry> changedFiles = new LinkedHashMap<>();
+        for (File file : files) {
+            StatEntry stat = StatEntry.of(file);
+            String cachedBlobId = getCachedBlobId(file, stat);
+            if (cachedBlobId != null) {
+                filesMap.put(file.getPath(), cachedBlobId);
+            } else {
+                changedFiles.put(file, stat);
+            }
+        }
+
+        Map<String, String> hashedFilesMap = FileHasher.hashAll(new ArrayList<>(changedFiles.keySet()));
+        for (Map.Entry<File, StatEntry> entry : changedFiles.entrySet()) {
+            File file = entry.getKey();
+            String blobId = hashedFilesMap.get(file.getPath());
+            cacheStat(file, entry.getValue(), blobId);
+            filesMap.put(file.getPath(), blobId);
+        }
+
+        if (stats.keySet().retainAll(filesMap.keySet())) {
+            statsChanged = true;
+        }
+        return filesMap;
+    }
+
+    /**
+     * Get the cached Blob SHA1 id of the file if its stat data is unchanged.
+     *
+     * @param file File instance
+     * @param stat Current stat data of the file
+     * @return SHA1 id, or null if the file should be hashed
+     */
+    private String getCachedBlobId(File file, StatEntry stat) {
+        StatEntry cachedStat = stats.get(file.getPath());
+        if (cachedStat != null && stat != null && cachedStat.matches(stat)
+            && stat.modifiedMillis() < indexLastModified - RACY_WINDOW_MILLIS) {
+            return cachedStat.blobId;
+        }
+        return null;
+    }
+
+    /**
+     * Cache the stat data of the file with its Blob SHA1 id.
+     *
+     * @param file   File instance
+     * @param stat   Stat data of the file when hashed
+     * @param blobId SHA1 id
+     */
+    private void cacheStat(File file, StatEntry stat, String blobId) {
+        if (stat != null) {
+            stat.blobId = blobId;
+            stats.put(file.getPath(), stat);
+            statsChanged = true;
+        }
     }
 
     /**
@@ -68,12 +241,14 @@ public class StagingArea implements Serializable {
     }
 
     /**
-     * Set tracked files.
+     * Set the commit the staged changes apply to.
+     * The tracked files are looked up in its tree one path at a time, rather than flattened up front,
+     * so that staging a file does not read the whole tree.
      *
-     * @param filesMap Map with file path as key and SHA1 id as value.
+     * @param commit Commit instance
      */
-    public void setTracked(Map<String, String> filesMap) {
-        tracked = filesMap;
+    public void setHEADCommit(Commit commit) {
+        HEADCommit = commit;
     }
 
     /**
@@ -95,17 +270,17 @@ public class StagingArea implements Serializable {
     }
 
     /**
-     * Perform a commit. Return tracked files Map after commit.
+     * Perform a commit. Return the staged changes to apply to the tree of the current commit.
      *
-     * @return Map with file path as key and SHA1 id as value.
+     * @return Map with file path as key and SHA1 id as value, or null for removed files.
      */
     public Map<String, String> commit() {
-        tracked.putAll(added);
+        Map<String, String> changes = new HashMap<>(added);
         for (String filePath : removed) {
-            tracked.remove(filePath);
+            changes.put(filePath, null);
         }
         clear();
-        return tracked;
+        return changes;
     }
 
     /**
@@ -117,10 +292,9 @@ public class StagingArea implements Serializable {
     public boolean add(File file) {
         String filePath = file.getPath();
 
-        Blob blob = new Blob(file);
-        String blobId = blob.getId();
+        String blobId = getBlobId(file);
 
-        String trackedBlobId = tracked.get(filePath);
+        String trackedBlobId = HEADCommit.getTrackedBlobId(filePath);
         if (trackedBlobId != null) {
             if (trackedBlobId.equals(blobId)) {
                 if (added.remove(filePath) != null) {
@@ -135,8 +309,8 @@ public class StagingArea implements Serializable {
             return false;
         }
 
-        if (!blob.getFile().exists()) {
-            blob.save();
+        if (!objectExists(blobId)) {
+            new Blob(file, blobId).save();
         }
         return true;
     }
@@ -155,7 +329,7 @@ public class StagingArea implements Serializable {
             return true;
         }
 
-        if (tracked.get(filePath) != null) {
+        if (HEADCommit.getTrackedBlobId(filePath) != null) {
             if (file.exists()) {
                 rm(file);
             }
@@ -163,4 +337,81 @@ public class StagingArea implements Serializable {
         }
         return false;
     }
+
+    /**
+     * The stat data of a file, like in the git index.
+     */
+    private static class StatEntry implements Serializable {
+
+        /**
+         * Fixed to the value computed for the class so far, so that saved index files can still be read.
+         */
+        private static final long serialVersionUID = 6690741850864271189L;
+
+        /**
+         * The file size in bytes.
+         */
+        private final long size;
+
+        /**
+         * The last modified time in nanoseconds.
+         */
+        private final long modifiedNanos;
+
+        /**
+         * The file key, which contains the device and inode number on Unix.
+         */
+        private final String fileKey;
+
+        /**
+         * The Blob SHA1 id of the file content when hashed.
+         */
+        private String blobId;
+
+        private StatEntry(long size, long modifiedNanos, String fileKey) {
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+            this.fileKey = fileKey;
+        }
+
+        /**
+         * Read the stat data of the file.
+         *
+         * @param file File instance
+         * @return StatEntry instance, or null if failed to read
+         */
+        static StatEntry of(File file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                Object key = attributes.fileKey();
+                return new StatEntry(
+                    attributes.size(),
+                    attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    key == null ? "" : key.toString());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Tells if the stat data is the same.
+         *
+         * @param other StatEntry instance
+         * @return true if the same
+         */
+        boolean matches(StatEntry other) {
+            return size == other.size
+                && modifiedNanos == other.modifiedNanos
+                && fileKey.equals(other.fileKey);
+        }
+
+        /**
+         * Get the last modified time in milliseconds.
+         *
+         * @return Milliseconds
+         */
+        long modifiedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(modifiedNanos);
+        }
+    }
 }
@@ -0,0 +1,697 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static gitlet.MyUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * Make the changes of each command to the repository atomic and durable.
+ * <p>
+ * Files are never overwritten in place. Each one is written to a temporary file in {@code .gitlet/tmp},
+ * forced to disk and renamed over the target. The objects written by a command stay in their temporary files,
+ * where the command reads them from, until it commits. They are then forced together, renamed into place,
+ * and each folder they are renamed into is forced once, before any ref can point to them.
+ * The refs and the index are buffered until the command returns. If more than one of them changed,
+ * they are also written to the journal, which is forced together with their temporary files
+ * before they are renamed into place, so that a crash leaves either all or none of them changed.
+ * A complete journal left by a crash is replayed before the next command, and an incomplete one is dropped.
+ * <p>
+ * Refs read through {@link #readRef(File)} are updated with compare-and-swap.
+ * Before committing, each changed ref is locked with {@link LockManager} and compared with
+ * the value the command first read, and the command fails without changes if another process
+ * has updated it in between. A reader sharing the index lock only writes the index to save its stat cache,
+ * which is dropped if another process replaced the index while the lock was being upgraded.
+ * <p>
+ * Forcing to disk can be turned off with {@code -Dgitlet.fsync=false}, e.g. on a tmpfs.
+ *
+ * <pre>
+ * journal: [signature: int][count: int]([path: UTF][isDeleted: boolean]([length: int][content...])?)*[crc32: long]
+ * </pre>
+ *
+ * @author Exuanbo
+ */
+public class Transaction {
+
+    /**
+     * The journal of the refs and the index being committed.
+     */
+    public static final File JOURNAL = join(Repository.GITLET_DIR, "journal");
+
+    /**
+     * The folder of temporary files, kept apart so that they are never mistaken for refs or objects.
+     */
+    public static final File TMP_DIR = join(Repository.GITLET_DIR, "tmp");
+
+    /**
+     * "GLJ1" in ASCII.
+     */
+    private static final int SIGNATURE = 0x474c4a31;
+
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("gitlet.fsync", "true"));
+
+    /**
+     * The transaction of the running command, or null outside of commands.
+     */
+    private static Transaction current;
+
+    /**
+     * The buffered files with the new content as value, or null to delete the file.
+     */
+    private final Map<File, byte[]> pendingFiles = new LinkedHashMap<>();
+
+    /**
+     * The refs read by the command with the content first read as value, or null if they did not exist.
+     */
+    private final Map<File, String> observedRefs = new HashMap<>();
+
+    /**
+     * The stat data of the files read by the command when first read, or null if they did not exist.
+     */
+    private final Map<File, String> observedStats = new HashMap<>();
+
+    /**
+     * Functions to run once the buffered file that is the key is written.
+     */
+    private final Map<File, Runnable> writeCallbacks = new HashMap<>();
+
+    /**
+     * The object files written by the command with their temporary files as value, to be renamed when committing.
+     */
+    private final Map<File, File> pendingObjects = new LinkedHashMap<>();
+
+    /**
+     * Functions to run once the buffered files are written.
+     */
+    private final List<Runnable> afterCommitCallbacks = new ArrayList<>();
+
+    private Transaction() {
+    }
+
+    /**
+     * Function that writes the content of a file to its channel.
+     */
+    public interface ContentWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Run the command in a transaction, recovering from a crashed one first.
+     * The changes are committed when the command returns or stops with a message through
+     * {@link MyUtils#exit}, and dropped if it fails otherwise, e.g. on corrupt data.
+     *
+     * @param command Function that runs the command
+     */
+    public static void run(Runnable command) {
+        recover();
+        Transaction previous = current;
+        Transaction transaction = new Transaction();
+        current = transaction;
+        try {
+            command.run();
+        } catch (ExitException e) {
+            current = previous;
+            // A command stopping with a message keeps the changes made before it.
+            transaction.commit();
+            throw e;
+        } catch (RuntimeException | Error e) {
+            current = previous;
+            transaction.discard();
+            throw e;
+        }
+        current = previous;
+        transaction.commit();
+    }
+
+    /**
+     * Read the ref, remembering its content so that it is only written if no other process changed it.
+     *
+     * @param ref File instance of HEAD or a branch head
+     * @return Content of the ref, or null if it does not exist
+     */
+    public static String readRef(File ref) {
+        String content = ref.isFile() ? readContentsAsString(ref) : null;
+        if (current != null && !current.observedRefs.containsKey(ref)) {
+            current.observedRefs.put(ref, content);
+        }
+        return content;
+    }
+
+    /**
+     * Remember the stat data of the file before the command reads it,
+     * so that a write of it can be dropped if another process replaced it in between.
+     *
+     * @param file File instance of the index
+     */
+    public static void observe(File file) {
+        if (current != null && !current.observedStats.containsKey(file)) {
+            current.observedStats.put(file, getStat(file));
+        }
+    }
+
+    /**
+     * Write the file as part of the running command, or at once outside of commands.
+     * The file is read as before until the command returns.
+     *
+     * @param file    File instance of a ref or the index
+     * @param content New content
+     */
+    public static void write(File file, byte[] content) {
+        write(file, content, null);
+    }
+
+    /**
+     * Write the file as part of the running command, or at once outside of commands,
+     * and run the function once it is written.
+     *
+     * @param file       File instance of a ref or the index
+     * @param content    New content
+     * @param afterWrite Function to run, or null
+     */
+    public static void write(File file, byte[] content, Runnable afterWrite) {
+        if (current == null) {
+            writeAtomically(file, channel -> writeFully(channel, content));
+            forceDirs(Set.of(file.getParentFile()));
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+            return;
+        }
+        current.pendingFiles.put(file, content);
+        if (afterWrite != null) {
+            current.writeCallbacks.put(file, afterWrite);
+        } else {
+            current.writeCallbacks.remove(file);
+        }
+    }
+
+    /**
+     * Delete the file as part of the running command, or at once outside of commands.
+     *
+     * @param file File instance of a ref
+     */
+    public static void delete(File file) {
+        if (current == null) {
+            rm(file);
+            forceDirs(Set.of(file.getParentFile()));
+            return;
+        }
+        current.pendingFiles.put(file, null);
+    }
+
+    /**
+     * Run the function once the files of the running command are written, or at once outside of commands.
+     *
+     * @param callback Function to run
+     */
+    public static void afterCommit(Runnable callback) {
+        if (current == null) {
+            callback.run();
+            return;
+        }
+        current.afterCommitCallbacks.add(callback);
+    }
+
+    /**
+     * Write the object file to a temporary file, which is renamed over it when the running command commits,
+     * or at once through a temporary file forced to disk outside of commands.
+     * Until then, the object is read from the temporary file, as given by {@link #getReadableFile(File)}.
+     *
+     * @param file   Object file
+     * @param writer Function that writes the content
+     */
+    public static void writeObjectFile(File file, ContentWriter writer) {
+        if (current == null) {
+            Set<File> dirs = new LinkedHashSet<>();
+            mkdirsForRename(file, dirs);
+            writeAtomically(file, writer);
+            forceDirs(dirs);
+            return;
+        }
+        File tempFile;
+        try {
+            tempFile = writeTempFile(file, writer);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        File previous;
+        synchronized (current.pendingObjects) {
+            previous = current.pendingObjects.put(file, tempFile);
+        }
+        if (previous != null) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Get the file to read the object file from, which is its temporary file
+     * if the running command has written it and not committed yet.
+     *
+     * @param file Object file
+     * @return File instance
+     */
+    public static File getReadableFile(File file) {
+        Transaction transaction = current;
+        if (transaction == null) {
+            return file;
+        }
+        synchronized (transaction.pendingObjects) {
+            return transaction.pendingObjects.getOrDefault(file, file);
+        }
+    }
+
+    /**
+     * Replace the file at once through a temporary file forced to disk, along with the folder it is in.
+     * Used for the files derived from the objects, which are not part of any command's changes.
+     *
+     * @param file   Target file
+     * @param writer Function that writes the content
+     */
+    public static void replace(File file, ContentWriter writer) {
+        writeAtomically(file, writer);
+        forceDirs(Set.of(file.getParentFile()));
+    }
+
+    /**
+     * Rename the file over the target at once, and force the folder it is renamed into.
+     * Used for the pack files, which are forced to disk by the code writing them.
+     *
+     * @param source File to rename
+     * @param target Target file
+     */
+    public static void move(File source, File target) {
+        try {
+            rename(source, target);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        forceDirs(Set.of(target.getParentFile()));
+    }
+
+    /**
+     * Make the objects durable, then write the buffered files, through the journal if there is more than one.
+     * Called once the transaction is no longer the running one, so that what the callbacks write is written at once.
+     */
+    private void commit() {
+        commitObjects();
+        if (pendingFiles.containsKey(Repository.INDEX) && LockManager.upgradeIndexLock()
+            && observedStats.containsKey(Repository.INDEX)
+            && !Objects.equals(getStat(Repository.INDEX), observedStats.get(Repository.INDEX))) {
+            // Readers only save the stat cache, which the index of the other process supersedes.
+            pendingFiles.remove(Repository.INDEX);
+            writeCallbacks.remove(Repository.INDEX);
+        }
+        List<LockManager.Lock> refLocks = lockChangedRefs();
+        try {
+            if (!pendingFiles.isEmpty()) {
+                apply(pendingFiles, pendingFiles.size() > 1);
+            }
+        } finally {
+            for (LockManager.Lock lock : refLocks) {
+                lock.close();
+            }
+        }
+        for (Runnable callback : writeCallbacks.values()) {
+            callback.run();
+        }
+        for (Runnable callback : afterCommitCallbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Force the temporary files of the objects together, rename them into place,
+     * and force each folder they are renamed into once.
+     */
+    private void commitObjects() {
+        if (pendingObjects.isEmpty()) {
+            return;
+        }
+        forceFiles(pendingObjects.values());
+        Set<File> dirs = new LinkedHashSet<>();
+        try {
+            for (Map.Entry<File, File> entry : pendingObjects.entrySet()) {
+                mkdirsForRename(entry.getKey(), dirs);
+                rename(entry.getValue(), entry.getKey());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        pendingObjects.clear();
+        forceDirs(dirs);
+    }
+
+    /**
+     * Delete the temporary files of the objects written by a command that failed.
+     */
+    private void discard() {
+        for (File tempFile : pendingObjects.values()) {
+            tempFile.delete();
+        }
+        pendingObjects.clear();
+    }
+
+    /**
+     * Create the folder of the file if it does not exist, and add the folders to force once it is renamed into it.
+     *
+     * @param file File to be renamed into its folder
+     * @param dirs Set of folders to force
+     */
+    private static void mkdirsForRename(File file, Set<File> dirs) {
+        File dir = file.getParentFile();
+        if (!dir.exists()) {
+            mkdirs(dir);
+            dirs.add(dir.getParentFile());
+        }
+        dirs.add(dir);
+    }
+
+    /**
+     * Get the stat data of the file, which changes whenever the file is replaced.
+     *
+     * @param file File instance
+     * @return Size, modification time and file key, or null if the file does not exist
+     */
+    static String getStat(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attributes.size() + ":" + attributes.lastModifiedTime() + ":" + attributes.fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lock the changed refs in path order, so that two processes never wait for each other,
+     * and exit with message if one of them is no longer what the command read.
+     *
+     * @return List of the held locks
+     */
+    private List<LockManager.Lock> lockChangedRefs() {
+        List<File> refs = new ArrayList<>();
+        for (File file : pendingFiles.keySet()) {
+            if (!file.equals(Repository.INDEX)) {
+                refs.add(file);
+            }
+        }
+        Collections.sort(refs);
+        List<LockManager.Lock> locks = new ArrayList<>(refs.size());
+        try {
+            for (File ref : refs) {
+                locks.add(LockManager.lockRef(ref));
+                if (observedRefs.containsKey(ref)) {
+                    String content = ref.isFile() ? readContentsAsString(ref) : null;
+                    if (!Objects.equals(content, observedRefs.get(ref))) {
+                        exit("%s was updated by another process; nothing was changed.", ref.getName());
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            for (LockManager.Lock lock : locks) {
+                lock.close();
+            }
+            throw e;
+        }
+        return locks;
+    }
+
+    /**
+     * Replay the journal left by a crashed command if it is complete, and drop it otherwise.
+     * A reader upgrades to holding the index lock alone first, and checks again,
+     * as another reader may have replayed the journal in the meantime.
+     */
+    public static void recover() {
+        if (!JOURNAL.exists()) {
+            return;
+        }
+        if (LockManager.upgradeIndexLock() && !JOURNAL.exists()) {
+            return;
+        }
+        Map<File, byte[]> files = readJournal();
+        if (files != null) {
+            apply(files, false);
+        }
+        rm(JOURNAL);
+        forceDirs(Set.of(Repository.GITLET_DIR));
+    }
+
+    /**
+     * Delete the temporary files left by crashed commands.
+     * Only called while no other command is running.
+     */
+    public static void removeTempFiles() {
+        File[] tempFiles = TMP_DIR.listFiles();
+        if (tempFiles == null) {
+            return;
+        }
+        for (File tempFile : tempFiles) {
+            rm(tempFile);
+        }
+    }
+
+    /**
+     * Write the files to temporary files, force them together, and rename them into place,
+     * forcing each folder they are in once, so that the journal can be dropped afterwards.
+     * With the journal, it is written before and forced along with the temporary files,
+     * and its folder is forced before any file is renamed.
+     *
+     * @param files       Map with File instance as key and content as value, or null to delete
+     * @param isJournaled Whether to write the journal first and drop it once done
+     */
+    private static void apply(Map<File, byte[]> files, boolean isJournaled) {
+        Map<File, File> tempFiles = new HashMap<>();
+        Set<File> dirs = new LinkedHashSet<>();
+        try {
+            for (Map.Entry<File, byte[]> entry : files.entrySet()) {
+                byte[] content = entry.getValue();
+                if (content != null) {
+                    File tempFile = writeTempFile(entry.getKey(), channel -> writeFully(channel, content));
+                    tempFiles.put(entry.getKey(), tempFile);
+                }
+            }
+            List<File> filesToForce = new ArrayList<>(tempFiles.values());
+            if (isJournaled) {
+                writeJournal(files);
+                filesToForce.add(JOURNAL);
+            }
+            forceFiles(filesToForce);
+            if (isJournaled) {
+                forceDirs(Set.of(Repository.GITLET_DIR));
+            }
+            for (Map.Entry<File, byte[]> entry : files.entrySet()) {
+                File file = entry.getKey();
+                if (entry.getValue() != null) {
+                    rename(tempFiles.remove(file), file);
+                } else if (file.exists()) {
+                    // Already deleted if the journal is replayed a second time.
+                    rm(file);
+                }
+                dirs.add(file.getParentFile());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            for (File tempFile : tempFiles.values()) {
+                tempFile.delete();
+            }
+        }
+        forceDirs(dirs);
+        if (isJournaled) {
+            rm(JOURNAL);
+            forceDirs(Set.of(Repository.GITLET_DIR));
+        }
+    }
+
+    /**
+     * Write the journal of the files, without forcing it.
+     *
+     * @param files Map with File instance as key and content as value, or null to delete
+     */
+    private static void writeJournal(Map<File, byte[]> files) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SIGNATURE);
+            out.writeInt(files.size());
+            for (Map.Entry<File, byte[]> entry : files.entrySet()) {
+                out.writeUTF(Repository.GITLET_DIR.toPath().relativize(entry.getKey().toPath()).toString());
+                byte[] content = entry.getValue();
+                out.writeBoolean(content == null);
+                if (content != null) {
+                    out.writeInt(content.length);
+                    out.write(content);
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try (FileChannel channel = FileChannel.open(JOURNAL.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Read the files in the journal.
+     *
+     * @return Map with File instance as key and content as value, or null if the journal is incomplete
+     */
+    private static Map<File, byte[]> readJournal() {
+        byte[] bytes = readContents(JOURNAL);
+        if (bytes.length < 16) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+            return null;
+        }
+        Map<File, byte[]> files = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != SIGNATURE) {
+                return null;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = join(Repository.GITLET_DIR, in.readUTF());
+                files.put(file, in.readBoolean() ? null : in.readNBytes(in.readInt()));
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return files;
+    }
+
+    /**
+     * Write the file to a temporary file forced to disk and rename it over the target.
+     *
+     * @param file   Target file
+     * @param writer Function that writes the content
+     */
+    private static void writeAtomically(File file, ContentWriter writer) {
+        File tempFile = null;
+        try {
+            tempFile = writeTempFile(file, writer);
+            forceFiles(List.of(tempFile));
+            rename(tempFile, file);
+        } catch (IOException e) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Write the content of the file to a new temporary file, without forcing it.
+     *
+     * @param file   Target file
+     * @param writer Function that writes the content
+     * @return Temporary file
+     * @throws IOException if failed to write
+     */
+    private static File writeTempFile(File file, ContentWriter writer) throws IOException {
+        if (!TMP_DIR.exists()) {
+            mkdirs(TMP_DIR);
+        }
+        File tempFile = Files.createTempFile(TMP_DIR.toPath(), file.getName(), ".tmp").toFile();
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+            writer.write(channel);
+        } catch (IOException | RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+        return tempFile;
+    }
+
+    /**
+     * Rename the file over the target, atomically where the file system allows it.
+     *
+     * @param source File to rename
+     * @param target Target file
+     * @throws IOException if failed to rename
+     */
+    static void rename(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Force the content of the file to disk, unless turned off.
+     *
+     * @param channel FileChannel instance
+     * @throws IOException if failed to force
+     */
+    public static void force(FileChannel channel) throws IOException {
+        if (FSYNC) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Force the files to disk together, unless turned off.
+     * They are forced in parallel, so that the file system can commit them in as few flushes as it can.
+     *
+     * @param files Collection of files
+     */
+    private static void forceFiles(Collection<File> files) {
+        if (!FSYNC) {
+            return;
+        }
+        files.parallelStream().forEach(file -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Force the folders to disk together, so that the files renamed into them are found after a crash.
+     * Not every platform can open a folder, in which case renames are left to the file system.
+     *
+     * @param dirs Set of folders
+     */
+    private static void forceDirs(Set<File> dirs) {
+        if (!FSYNC) {
+            return;
+        }
+        dirs.parallelStream().forEach(dir -> {
+            try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException ignored) {
+                // Folders cannot be opened on Windows.
+            }
+        });
+    }
+}
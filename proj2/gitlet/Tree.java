@@ -0,0 +1,281 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+
+import static gitlet.MyUtils.*;
+import static gitlet.Utils.error;
+import static gitlet.Utils.sha1;
+
+/**
+ * Represent the directory object, which maps names to the blobs and subtrees in the directory.
+ * <p>
+ * The SHA1 id is generated from the encoded entries, so directories with the same content
+ * share the same tree, and a commit only writes the trees of the directories that changed.
+ *
+ * @author Exuanbo
+ */
+public class Tree {
+
+    /**
+     * The entries SortedMap with name as key.
+     */
+    private final SortedMap<String, Entry> entries;
+
+    /**
+     * The SHA1 id generated from the encoded entries.
+     */
+    private final String id;
+
+    private Tree(SortedMap<String, Entry> entries) {
+        this.entries = entries;
+        id = sha1(encode());
+    }
+
+    /**
+     * Decode a Tree instance.
+     *
+     * @param id     SHA1 id
+     * @param reader ObjectReader instance
+     */
+    private Tree(String id, ObjectReader reader) {
+        this.id = id;
+        entries = new TreeMap<>();
+        int entriesCount = reader.readLength();
+        for (int i = 0; i < entriesCount; i++) {
+            String name = reader.readString();
+            byte type = reader.readByte();
+            entries.put(name, new Entry(type, reader.readId()));
+        }
+    }
+
+    /**
+     * Get a Tree instance from the file with the SHA1 id.
+     * Decoded trees are kept in the ObjectCache.
+     *
+     * @param id SHA1 id
+     * @return Tree instance
+     */
+    public static Tree fromFile(String id) {
+        return ObjectCache.get(id, Tree.class, Tree::load, Tree::getWeight);
+    }
+
+    private static Tree load(String id) {
+        return new Tree(id, new ObjectReader(readObjectBytes(id), ObjectWriter.TYPE_TREE));
+    }
+
+    /**
+     * Get the approximate size of this instance in memory.
+     *
+     * @return Size in bytes
+     */
+    private long getWeight() {
+        long weight = 128;
+        for (String name : entries.keySet()) {
+            weight += 160 + name.length() * 2L;
+        }
+        return weight;
+    }
+
+    /**
+     * Encode this instance in the binary object format.
+     *
+     * @return Encoded object
+     */
+    private byte[] encode() {
+        ObjectWriter writer = new ObjectWriter(ObjectWriter.TYPE_TREE);
+        writer.writeVarint(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            writer.writeString(entry.getKey());
+            writer.writeByte(entry.getValue().type);
+            writer.writeId(entry.getValue().id);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Save this Tree instance to file in objects folder, unless the same tree exists.
+     */
+    private void save() {
+        if (!objectExists(id)) {
+            saveObjectFile(getObjectFile(id), encode());
+        }
+    }
+
+    /**
+     * Get the SHA1 id.
+     *
+     * @return SHA1 id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Get the entries of the directory.
+     *
+     * @return SortedMap with name as key
+     */
+    public SortedMap<String, Entry> getEntries() {
+        return Collections.unmodifiableSortedMap(entries);
+    }
+
+    /**
+     * Get the tracked files of the tree and all its subtrees.
+     *
+     * @param treeId SHA1 id of the tree
+     * @param dir    Directory of the tree
+     * @return Map with file path as key and Blob SHA1 id as value
+     */
+    public static Map<String, String> flatten(String treeId, File dir) {
+        Map<String, String> filesMap = new HashMap<>();
+        Deque<Map.Entry<String, File>> stack = new ArrayDeque<>();
+        stack.push(Map.entry(treeId, dir));
+        while (!stack.isEmpty()) {
+            Map.Entry<String, File> next = stack.pop();
+            for (Map.Entry<String, Entry> entry : fromFile(next.getKey()).entries.entrySet()) {
+                File file = new File(next.getValue(), entry.getKey());
+                if (entry.getValue().isTree()) {
+                    stack.push(Map.entry(entry.getValue().id, file));
+                } else {
+                    filesMap.put(file.getPath(), entry.getValue().id);
+                }
+            }
+        }
+        return filesMap;
+    }
+
+    /**
+     * Get the Blob SHA1 id of the file in the tree, reading only the trees of the directories on its path.
+     *
+     * @param treeId   SHA1 id of the tree
+     * @param dir      Directory of the tree
+     * @param filePath Path of the file
+     * @return SHA1 id, or null if the file is not in the tree
+     */
+    public static String find(String treeId, File dir, String filePath) {
+        Path relativePath = dir.toPath().relativize(new File(filePath).toPath());
+        if (relativePath.getNameCount() == 0 || relativePath.startsWith("..")) {
+            return null;
+        }
+        String id = treeId;
+        for (int i = 0; i < relativePath.getNameCount(); i++) {
+            Entry entry = fromFile(id).entries.get(relativePath.getName(i).toString());
+            if (entry == null) {
+                return null;
+            }
+            boolean isLast = i == relativePath.getNameCount() - 1;
+            if (entry.isTree() == isLast) {
+                // A directory where the file should be, or a file where a directory should be.
+                return null;
+            }
+            id = entry.id;
+        }
+        return id;
+    }
+
+    /**
+     * Write the tree with the changes applied.
+     * Only the trees of the directories with changes are written,
+     * and the subtrees of the other directories are shared with the original tree.
+     *
+     * @param treeId  SHA1 id of the original tree, or null to start from an empty tree
+     * @param dir     Directory of the tree
+     * @param changes Map with file path as key and Blob SHA1 id as value, or null to remove the file
+     * @return SHA1 id of the new tree
+     */
+    public static String update(String treeId, File dir, Map<String, String> changes) {
+        Path dirPath = dir.toPath();
+        Map<List<String>, String> relativeChanges = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            Path relativePath = dirPath.relativize(new File(change.getKey()).toPath());
+            if (relativePath.getNameCount() == 0 || relativePath.startsWith("..")) {
+                throw error("File is outside the repository: %s", change.getKey());
+            }
+            List<String> names = new ArrayList<>();
+            for (Path name : relativePath) {
+                names.add(name.toString());
+            }
+            relativeChanges.put(names, change.getValue());
+        }
+        return update(treeId, relativeChanges, 0).id;
+    }
+
+    /**
+     * Apply the changes under this directory level and write the new tree.
+     *
+     * @param treeId  SHA1 id of the original tree, or null
+     * @param changes Map with the names of the path as key and Blob SHA1 id or null as value
+     * @param depth   Number of names of the directory
+     * @return Tree instance
+     */
+    private static Tree update(String treeId, Map<List<String>, String> changes, int depth) {
+        SortedMap<String, Entry> entries = treeId == null ? new TreeMap<>() : new TreeMap<>(fromFile(treeId).entries);
+        Map<String, Map<List<String>, String>> subtreeChanges = new HashMap<>();
+        for (Map.Entry<List<String>, String> change : changes.entrySet()) {
+            List<String> names = change.getKey();
+            String name = names.get(depth);
+            if (names.size() == depth + 1) {
+                if (change.getValue() == null) {
+                    entries.remove(name);
+                } else {
+                    entries.put(name, new Entry(ObjectWriter.TYPE_BLOB, change.getValue()));
+                }
+            } else {
+                subtreeChanges.computeIfAbsent(name, k -> new HashMap<>()).put(names, change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<List<String>, String>> subtreeChange : subtreeChanges.entrySet()) {
+            String name = subtreeChange.getKey();
+            Entry prevEntry = entries.get(name);
+            String subtreeId = prevEntry != null && prevEntry.isTree() ? prevEntry.id : null;
+            Tree subtree = update(subtreeId, subtreeChange.getValue(), depth + 1);
+            if (subtree.entries.isEmpty()) {
+                if (subtreeId != null) {
+                    entries.remove(name);
+                }
+            } else {
+                entries.put(name, new Entry(ObjectWriter.TYPE_TREE, subtree.id));
+            }
+        }
+        Tree tree = new Tree(entries);
+        if (depth == 0 || !entries.isEmpty()) {
+            tree.save();
+        }
+        return tree;
+    }
+
+    /**
+     * An entry of the directory, which is either a blob or a subtree.
+     */
+    public static class Entry {
+
+        private final byte type;
+
+        private final String id;
+
+        Entry(byte type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        /**
+         * Tells if the entry is a subtree.
+         *
+         * @return true if a subtree
+         */
+        public boolean isTree() {
+            return type == ObjectWriter.TYPE_TREE;
+        }
+
+        /**
+         * Get the SHA1 id of the blob or the subtree.
+         *
+         * @return SHA1 id
+         */
+        public String getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package gitlet;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Compute the changes between two sets of tracked files.
+ * <p>
+ * Trees are compared entry by entry, and subtrees with the same SHA1 id are skipped without being read,
+ * so the cost is proportional to the number of changed paths rather than the number of tracked files.
+ *
+ * @author Exuanbo
+ */
+public class TreeDiff {
+
+    /**
+     * Get the changes from one commit to another.
+     * Commits of the legacy formats have no tree, and their tracked files are compared instead.
+     *
+     * @param from Commit instance
+     * @param to   Commit instance
+     * @return Map with file path as key and the Blob SHA1 id in the second commit as value, or null if deleted
+     */
+    public static Map<String, String> diff(Commit from, Commit to) {
+        if (from.getTree() != null && to.getTree() != null) {
+            return diff(from.getTree(), to.getTree(), Repository.CWD);
+        }
+        return diff(from.getTracked(), to.getTracked());
+    }
+
+    /**
+     * Get the changes from one tree to another.
+     *
+     * @param fromTreeId SHA1 id of the tree
+     * @param toTreeId   SHA1 id of the tree
+     * @param dir        Directory of the trees
+     * @return Map with file path as key and the Blob SHA1 id in the second tree as value, or null if deleted
+     */
+    public static Map<String, String> diff(String fromTreeId, String toTreeId, File dir) {
+        Map<String, String> changes = new HashMap<>();
+        diff(fromTreeId, toTreeId, dir, changes);
+        return changes;
+    }
+
+    /**
+     * Get the changes from one tracked files Map to another.
+     *
+     * @param from Map with file path as key and SHA1 id as value
+     * @param to   Map with file path as key and SHA1 id as value
+     * @return Map with file path as key and the Blob SHA1 id in the second Map as value, or null if deleted
+     */
+    public static Map<String, String> diff(Map<String, String> from, Map<String, String> to) {
+        Map<String, String> changes = new HashMap<>();
+        for (Map.Entry<String, String> entry : to.entrySet()) {
+            if (!entry.getValue().equals(from.get(entry.getKey()))) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String filePath : from.keySet()) {
+            if (!to.containsKey(filePath)) {
+                changes.put(filePath, null);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Helper method to compare the trees recursively.
+     *
+     * @param fromTreeId SHA1 id of the tree, or null if the directory does not exist
+     * @param toTreeId   SHA1 id of the tree, or null if the directory does not exist
+     * @param dir        Directory of the trees
+     * @param changes    Map to put the changes into
+     */
+    private static void diff(String fromTreeId, String toTreeId, File dir, Map<String, String> changes) {
+        if (Objects.equals(fromTreeId, toTreeId)) {
+            return;
+        }
+        SortedMap<String, Tree.Entry> fromEntries = getEntries(fromTreeId);
+        SortedMap<String, Tree.Entry> toEntries = getEntries(toTreeId);
+        Set<String> names = new TreeSet<>(fromEntries.keySet());
+        names.addAll(toEntries.keySet());
+        for (String name : names) {
+            Tree.Entry fromEntry = fromEntries.get(name);
+            Tree.Entry toEntry = toEntries.get(name);
+            File file = new File(dir, name);
+            // A path may change from a file to a directory or the other way around.
+            String fromSubtreeId = fromEntry != null && fromEntry.isTree() ? fromEntry.getId() : null;
+            String toSubtreeId = toEntry != null && toEntry.isTree() ? toEntry.getId() : null;
+            diff(fromSubtreeId, toSubtreeId, file, changes);
+            String fromBlobId = fromEntry != null && !fromEntry.isTree() ? fromEntry.getId() : null;
+            String toBlobId = toEntry != null && !toEntry.isTree() ? toEntry.getId() : null;
+            if (!Objects.equals(fromBlobId, toBlobId)) {
+                changes.put(file.getPath(), toBlobId);
+            }
+        }
+    }
+
+    /**
+     * Get the entries of the tree.
+     *
+     * @param treeId SHA1 id of the tree, or null
+     * @return SortedMap with name as key, empty if the tree id is null
+     */
+    private static SortedMap<String, Tree.Entry> getEntries(String treeId) {
+        return treeId == null ? Collections.emptySortedMap() : Tree.fromFile(treeId).getEntries();
+    }
+}
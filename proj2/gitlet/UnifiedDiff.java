@@ -0,0 +1,409 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Print the differences between two versions of a file in the unified format.
+ * <p>
+ * Content is streamed twice instead of being held in memory: the first pass hashes each line
+ * for the Myers diff, and the second pass copies only the lines printed in the hunks.
+ * The hashes are diffed in windows of at most a fixed number of lines, and only the hunks before a point
+ * in an unchanged run are kept before the windows move on, so memory is bounded
+ * by the window size and the number of hunks, and files larger than the heap can be compared.
+ * Changes spanning the boundary of a window may give a longer diff than the shortest one.
+ *
+ * @author Exuanbo
+ */
+public class UnifiedDiff {
+
+    /**
+     * Number of unchanged lines printed around each change.
+     */
+    private static final int CONTEXT_LINES = 3;
+
+    /**
+     * Maximum number of lines of each version diffed at a time.
+     */
+    private static final int WINDOW_LINES = 1 << 20;
+
+    /**
+     * Number of bytes at the beginning of the content searched for a NUL byte to detect binary files.
+     */
+    private static final int BINARY_CHECK_LENGTH = 8000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final String NO_NEWLINE_AT_EOF = "\\ No newline at end of file\n";
+
+    /**
+     * Print the differences between two versions of the file.
+     *
+     * @param out  PrintStream to print to
+     * @param path Path of the file to print in the header
+     * @param from Source of the old content, or null if the file is added
+     * @param to   Source of the new content, or null if the file is deleted
+     */
+    public static void print(PrintStream out, String path, Source from, Source to) {
+        try (LineStream fromStream = new LineStream(from);
+             LineStream toStream = new LineStream(to)) {
+            List<LineDiff.Hunk> hunks = diff(fromStream, toStream);
+            if (hunks != null && hunks.isEmpty()) {
+                return;
+            }
+            out.print("diff --git a/" + path + " b/" + path + "\n");
+            if (hunks == null) {
+                out.print("Binary files " + (from == null ? "/dev/null" : "a/" + path)
+                    + " and " + (to == null ? "/dev/null" : "b/" + path) + " differ\n");
+                return;
+            }
+            out.print("--- " + (from == null ? "/dev/null" : "a/" + path) + "\n");
+            out.print("+++ " + (to == null ? "/dev/null" : "b/" + path) + "\n");
+            try (LineStream fromReader = new LineStream(from);
+                 LineStream toReader = new LineStream(to)) {
+                for (List<LineDiff.Hunk> group : groupHunks(hunks)) {
+                    printGroup(out, group, fromStream.lineCount, fromReader, toReader);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Diff the hashes of the lines window by window.
+     *
+     * @param from LineStream of the old content
+     * @param to   LineStream of the new content
+     * @return List of Hunk instances in order, or null if either version is binary
+     */
+    private static List<LineDiff.Hunk> diff(LineStream from, LineStream to) throws IOException {
+        List<LineDiff.Hunk> hunks = new ArrayList<>();
+        Window fromWindow = new Window(from.size);
+        Window toWindow = new Window(to.size);
+        while (true) {
+            fromWindow.fill(from);
+            toWindow.fill(to);
+            if (from.isBinary || to.isBinary) {
+                return null;
+            }
+            List<LineDiff.Hunk> windowHunks =
+                LineDiff.diff(fromWindow.hashes, fromWindow.count, toWindow.hashes, toWindow.count);
+            if (fromWindow.isLast && toWindow.isLast) {
+                for (LineDiff.Hunk hunk : windowHunks) {
+                    hunks.add(shift(hunk, fromWindow.start, toWindow.start));
+                }
+                return hunks;
+            }
+
+            // Cut in the unchanged run closest before the middle of the windows,
+            // and diff the lines after the cut again with the next lines.
+            int fromLimit = fromWindow.isLast ? fromWindow.count : fromWindow.count / 2;
+            int toLimit = toWindow.isLast ? toWindow.count : toWindow.count / 2;
+            int fromCut = 0;
+            int toCut = 0;
+            int hunksBeforeCut = 0;
+            int fromRunStart = 0;
+            int toRunStart = 0;
+            for (int i = 0; i <= windowHunks.size(); i++) {
+                LineDiff.Hunk hunk = i < windowHunks.size() ? windowHunks.get(i) : null;
+                int runLength = (hunk != null ? hunk.getAStart() : fromWindow.count) - fromRunStart;
+                int step = Math.min(runLength, Math.min(fromLimit - fromRunStart, toLimit - toRunStart));
+                fromCut = fromRunStart + step;
+                toCut = toRunStart + step;
+                hunksBeforeCut = i;
+                if (hunk == null || hunk.getAEnd() > fromLimit || hunk.getBEnd() > toLimit) {
+                    break;
+                }
+                fromRunStart = hunk.getAEnd();
+                toRunStart = hunk.getBEnd();
+            }
+            if (fromCut == 0 && toCut == 0) {
+                // No unchanged line before the middle, so the first hunk is kept as it is.
+                LineDiff.Hunk first = windowHunks.get(0);
+                fromCut = first.getAEnd();
+                toCut = first.getBEnd();
+                hunksBeforeCut = 1;
+            }
+            for (LineDiff.Hunk hunk : windowHunks.subList(0, hunksBeforeCut)) {
+                hunks.add(shift(hunk, fromWindow.start, toWindow.start));
+            }
+            fromWindow.drop(fromCut);
+            toWindow.drop(toCut);
+        }
+    }
+
+    private static LineDiff.Hunk shift(LineDiff.Hunk hunk, int fromStart, int toStart) {
+        return new LineDiff.Hunk(hunk.getAStart() + fromStart, hunk.getAEnd() + fromStart,
+            hunk.getBStart() + toStart, hunk.getBEnd() + toStart);
+    }
+
+    /**
+     * Group the hunks whose context lines would overlap, so that each group is printed as one hunk.
+     *
+     * @param hunks List of Hunk instances in order
+     * @return List of groups, each as a List of Hunk instances
+     */
+    private static List<List<LineDiff.Hunk>> groupHunks(List<LineDiff.Hunk> hunks) {
+        List<List<LineDiff.Hunk>> groups = new ArrayList<>();
+        List<LineDiff.Hunk> group = null;
+        for (LineDiff.Hunk hunk : hunks) {
+            if (group == null || hunk.getAStart() - group.get(group.size() - 1).getAEnd() > 2 * CONTEXT_LINES) {
+                group = new ArrayList<>();
+                groups.add(group);
+            }
+            group.add(hunk);
+        }
+        return groups;
+    }
+
+    /**
+     * Print a group of hunks with its header and the context lines around it.
+     *
+     * @param out           PrintStream to print to
+     * @param group         List of Hunk instances
+     * @param fromLineCount Number of old lines
+     * @param fromReader    LineStream to read the old lines from
+     * @param toReader      LineStream to read the new lines from
+     */
+    private static void printGroup(PrintStream out, List<LineDiff.Hunk> group, int fromLineCount,
+                                   LineStream fromReader, LineStream toReader) throws IOException {
+        LineDiff.Hunk first = group.get(0);
+        LineDiff.Hunk last = group.get(group.size() - 1);
+        int fromStart = Math.max(0, first.getAStart() - CONTEXT_LINES);
+        int toStart = first.getBStart() - (first.getAStart() - fromStart);
+        int trailingContext = Math.min(CONTEXT_LINES, fromLineCount - last.getAEnd());
+        int fromEnd = last.getAEnd() + trailingContext;
+        int toEnd = last.getBEnd() + trailingContext;
+        out.print("@@ -" + formatRange(fromStart, fromEnd) + " +" + formatRange(toStart, toEnd) + " @@\n");
+
+        int position = fromStart;
+        for (LineDiff.Hunk hunk : group) {
+            printLines(out, ' ', fromReader, position, hunk.getAStart());
+            printLines(out, '-', fromReader, hunk.getAStart(), hunk.getAEnd());
+            printLines(out, '+', toReader, hunk.getBStart(), hunk.getBEnd());
+            position = hunk.getAEnd();
+        }
+        printLines(out, ' ', fromReader, position, fromEnd);
+    }
+
+    /**
+     * Format the range of lines for the hunk header,
+     * where an empty range is given by the line before it.
+     *
+     * @param start Start index of the range
+     * @param end   End index of the range
+     * @return Formatted range
+     */
+    private static String formatRange(int start, int end) {
+        int length = end - start;
+        if (length == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (length == 0 ? start : start + 1) + "," + length;
+    }
+
+    private static void printLines(PrintStream out, char prefix, LineStream reader,
+                                   int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            out.write(prefix);
+            while (reader.lineCount < i) {
+                reader.next(null);
+            }
+            if (!reader.next(out)) {
+                out.print("\n" + NO_NEWLINE_AT_EOF);
+            }
+        }
+    }
+
+    /**
+     * Source of the content of a version of the file, which can be opened more than once.
+     */
+    public interface Source {
+
+        /**
+         * Open a stream of the content.
+         *
+         * @return InputStream instance
+         */
+        InputStream open() throws IOException;
+
+        /**
+         * Get the length of the content, which bounds its number of lines.
+         *
+         * @return Number of bytes
+         */
+        long size() throws IOException;
+    }
+
+    /**
+     * Hashes of a range of consecutive lines.
+     */
+    private static class Window {
+
+        private final long[] hashes;
+
+        private int count = 0;
+
+        /**
+         * Index of the first line in the window.
+         */
+        private int start = 0;
+
+        /**
+         * Whether the window holds the last line of the content.
+         */
+        private boolean isLast = false;
+
+        /**
+         * Size the window to hold all the lines of content of the length, up to WINDOW_LINES,
+         * with room for the end of the content to be found in the same fill.
+         *
+         * @param size Length of the content in bytes
+         */
+        private Window(long size) {
+            hashes = new long[(int) Math.min(WINDOW_LINES, size + 1)];
+        }
+
+        /**
+         * Hash the next lines until the window is full or the content ends.
+         *
+         * @param stream LineStream instance
+         */
+        private void fill(LineStream stream) throws IOException {
+            while (count < hashes.length && !isLast) {
+                if (stream.next(null)) {
+                    hashes[count++] = stream.hash;
+                } else if (stream.isBinary) {
+                    return;
+                } else {
+                    if (stream.hasPartialLine) {
+                        hashes[count++] = stream.hash;
+                    }
+                    isLast = true;
+                }
+            }
+        }
+
+        /**
+         * Drop the lines before the index.
+         *
+         * @param index Index in the window
+         */
+        private void drop(int index) {
+            System.arraycopy(hashes, index, hashes, 0, count - index);
+            count -= index;
+            start += index;
+        }
+    }
+
+    /**
+     * Read the content line by line, hashing each line including its line terminator with 64-bit FNV-1a.
+     */
+    private static class LineStream implements AutoCloseable {
+
+        private final InputStream in;
+
+        /**
+         * Length of the content when opened.
+         */
+        private final long size;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private int bufferPosition = 0;
+
+        private int bufferLength = 0;
+
+        /**
+         * Number of bytes read before the buffer.
+         */
+        private long position = 0;
+
+        /**
+         * Number of lines read.
+         */
+        private int lineCount = 0;
+
+        /**
+         * Hash of the last line read.
+         */
+        private long hash;
+
+        /**
+         * Whether the content ends with a line without newline, which is the last line read.
+         */
+        private boolean hasPartialLine = false;
+
+        private boolean isBinary = false;
+
+        /**
+         * @param source Source instance, or null for empty content
+         */
+        private LineStream(Source source) throws IOException {
+            in = source == null ? InputStream.nullInputStream() : source.open();
+            size = source == null ? 0 : source.size();
+        }
+
+        /**
+         * Read the next line, writing it to the OutputStream if not null.
+         *
+         * @param out OutputStream instance, or null
+         * @return true if a line ending with newline is read
+         */
+        private boolean next(OutputStream out) throws IOException {
+            long lineHash = FNV_OFFSET_BASIS;
+            boolean isInLine = false;
+            while (true) {
+                if (bufferPosition == bufferLength) {
+                    position += bufferLength;
+                    bufferLength = in.read(buffer);
+                    bufferPosition = 0;
+                    if (bufferLength == -1) {
+                        bufferLength = 0;
+                        if (isInLine) {
+                            hasPartialLine = true;
+                            hash = lineHash;
+                            lineCount++;
+                        }
+                        return false;
+                    }
+                }
+                int lineStart = bufferPosition;
+                while (bufferPosition < bufferLength) {
+                    byte b = buffer[bufferPosition++];
+                    if (b == 0 && position + bufferPosition <= BINARY_CHECK_LENGTH) {
+                        isBinary = true;
+                        return false;
+                    }
+                    lineHash = (lineHash ^ (b & 0xff)) * FNV_PRIME;
+                    isInLine = true;
+                    if (b == '\n') {
+                        if (out != null) {
+                            out.write(buffer, lineStart, bufferPosition - lineStart);
+                        }
+                        hash = lineHash;
+                        lineCount++;
+                        return true;
+                    }
+                }
+                if (out != null) {
+                    out.write(buffer, lineStart, bufferPosition - lineStart);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -23,6 +23,10 @@ Usage: python3 tester.py OPTIONS TEST.in ...
                       attach a remote debugger
        --tolerance=N  Set the maximum allowed edit distance between program
                       output and expected output to N (default 3).
+       --jvm-options=OPTS
+                      Pass OPTS to the Java interpreter running gitlet, such
+                      as -Dgitlet.blob.chunkThreshold=1 to store every file
+                      in chunks.
        --verbose      Print extra information about execution.
 """
 
@@ -400,7 +404,7 @@ if __name__ == "__main__":
         opts, files = \
             getopt(sys.argv[1:], '',
                    ['show=', 'keep', 'progdir=', 'verbose', 'src=',
-                    'tolerance=', 'debug'])
+                    'tolerance=', 'debug', 'jvm-options='])
         for opt, val in opts:
             if opt == '--show':
                 val = val.lower()
@@ -422,6 +426,8 @@ if __name__ == "__main__":
                 output_tolerance = int(val)
             elif opt == "--debug":
                 DEBUG = True
+            elif opt == "--jvm-options":
+                JAVA_COMMAND = "{} {}".format(JAVA_COMMAND, val)
         if prog_dir is None:
             prog_dir = abspath(getcwd())
             k = 10